@@ -4,9 +4,13 @@ import android.os.IBinder;
 import android.util.Log;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 
 /**
- * Utils to disable animations for testing purposes.
+ * Utils to disable animations for testing purposes. The reflective handles of the window manager
+ * are resolved once and cached, the scales are only written when they differ from the current ones,
+ * and the original scales of the device are kept to be restored exactly with
+ * {@link #restoreAnimations()}.
  * Created by ahasbini on 04-Jan-18.
  */
 
@@ -14,6 +18,11 @@ public class AnimationScaleUtils {
 
     private static final String TAG = AnimationScaleUtils.class.getSimpleName();
 
+    private static Object windowManagerObj;
+    private static Method setAnimationScales;
+    private static Method getAnimationScales;
+    private static float[] originalScales;
+
     public static void disableAnimations() {
         setSystemAnimationsScale(0.0f);
     }
@@ -22,26 +31,62 @@ public class AnimationScaleUtils {
         setSystemAnimationsScale(1.0f);
     }
 
-    private static void setSystemAnimationsScale(float animationScale) {
+    /**
+     * Restores the scales the device had before they were first changed by these utils.
+     */
+    public static synchronized void restoreAnimations() {
+        if (originalScales == null) {
+            return;
+        }
         try {
-            Class<?> windowManagerStubClazz = Class.forName("android.view.IWindowManager$Stub");
-            Method asInterface = windowManagerStubClazz.getDeclaredMethod("asInterface", IBinder.class);
-            Class<?> serviceManagerClazz = Class.forName("android.os.ServiceManager");
-            Method getService = serviceManagerClazz.getDeclaredMethod("getService", String.class);
-            Class<?> windowManagerClazz = Class.forName("android.view.IWindowManager");
-            Method setAnimationScales = windowManagerClazz.getDeclaredMethod("setAnimationScales", float[].class);
-            Method getAnimationScales = windowManagerClazz.getDeclaredMethod("getAnimationScales");
-
-            IBinder windowManagerBinder = (IBinder) getService.invoke(null, "window");
-            Object windowManagerObj = asInterface.invoke(null, windowManagerBinder);
-            float[] currentScales = (float[]) getAnimationScales.invoke(windowManagerObj);
-            for (int i = 0; i < currentScales.length; i++) {
-                currentScales[i] = animationScale;
-            }
-            setAnimationScales.invoke(windowManagerObj, new Object[]{currentScales});
-            Log.i(TAG, "setSystemAnimationsScale: animations changed");
+            setSystemAnimationsScales(originalScales);
+            originalScales = null;
+        } catch (Exception e) {
+            Log.e(TAG, "Could not restore animation scales :'(", e);
+        }
+    }
+
+    private static synchronized void setSystemAnimationsScale(float animationScale) {
+        try {
+            float[] scales = getSystemAnimationsScales();
+            Arrays.fill(scales, animationScale);
+            setSystemAnimationsScales(scales);
         } catch (Exception e) {
             Log.e(TAG, "Could not change animation scale to " + animationScale + " :'(", e);
         }
     }
+
+    private static float[] getSystemAnimationsScales() throws Exception {
+        resolveWindowManager();
+        return (float[]) getAnimationScales.invoke(windowManagerObj);
+    }
+
+    private static void setSystemAnimationsScales(float[] scales) throws Exception {
+        float[] currentScales = getSystemAnimationsScales();
+        if (Arrays.equals(currentScales, scales)) {
+            Log.i(TAG, "setSystemAnimationsScale: animations already set");
+            return;
+        }
+        if (originalScales == null) {
+            originalScales = currentScales;
+        }
+        setAnimationScales.invoke(windowManagerObj, new Object[]{scales});
+        Log.i(TAG, "setSystemAnimationsScale: animations changed");
+    }
+
+    private static void resolveWindowManager() throws Exception {
+        if (windowManagerObj != null) {
+            return;
+        }
+        Class<?> windowManagerStubClazz = Class.forName("android.view.IWindowManager$Stub");
+        Method asInterface = windowManagerStubClazz.getDeclaredMethod("asInterface", IBinder.class);
+        Class<?> serviceManagerClazz = Class.forName("android.os.ServiceManager");
+        Method getService = serviceManagerClazz.getDeclaredMethod("getService", String.class);
+        Class<?> windowManagerClazz = Class.forName("android.view.IWindowManager");
+        setAnimationScales = windowManagerClazz.getDeclaredMethod("setAnimationScales", float[].class);
+        getAnimationScales = windowManagerClazz.getDeclaredMethod("getAnimationScales");
+
+        IBinder windowManagerBinder = (IBinder) getService.invoke(null, "window");
+        windowManagerObj = asInterface.invoke(null, windowManagerBinder);
+    }
 }
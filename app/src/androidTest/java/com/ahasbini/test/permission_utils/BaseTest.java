@@ -1,32 +1,27 @@
 package com.ahasbini.test.permission_utils;
 
-import android.Manifest;
 import android.support.test.runner.AndroidJUnit4;
 
-import org.junit.AfterClass;
 import org.junit.BeforeClass;
-import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.runner.RunWith;
 
 /**
- * A base class for all tests. It takes care of disabling the animations before the tests start.
+ * A base class for all tests. It takes care of disabling the animations before the tests start,
+ * which is done once per run by {@link DeviceSetup} and restored when the run finishes, and of
+ * applying the permissions declared with {@link RequiresPermissions} and
+ * {@link RevokedPermissions}.
  * Created by ahasbini on 02-Jan-18.
  */
 
 @RunWith(AndroidJUnit4.class)
 public class BaseTest {
 
-    @ClassRule
-    public static PermissionRule grantPermissionRule =
-            PermissionRule.grant(Manifest.permission.SET_ANIMATION_SCALE, true);
+    @Rule
+    public PermissionStateRule permissionStateRule = new PermissionStateRule();
 
     @BeforeClass
-    public static void disableAnimation() {
-        AnimationScaleUtils.disableAnimations();
-    }
-
-    @AfterClass
-    public static void enableAnimation() {
-        AnimationScaleUtils.enableAnimations();
+    public static void disableAnimation() throws Exception {
+        DeviceSetup.requireAnimationsDisabled(true);
     }
 }
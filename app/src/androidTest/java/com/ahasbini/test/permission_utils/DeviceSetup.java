@@ -0,0 +1,81 @@
+package com.ahasbini.test.permission_utils;
+
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.support.test.InstrumentationRegistry;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import org.junit.Assert;
+
+/**
+ * Applies the device state required by the tests once per instrumentation run instead of once per
+ * test class. It memoizes the state which is already in place so that classes with the same
+ * requirements don't send any commands to the device, while classes with different requirements
+ * still get the state they need. The original state is restored by {@link PermissionRunListener}
+ * when the run finishes.
+ */
+
+public class DeviceSetup {
+
+    private static final String TAG = DeviceSetup.class.getSimpleName();
+
+    private static boolean animationScalePermissionGranted;
+    private static boolean animationsChanged;
+    private static boolean animationsDisabled;
+
+    private DeviceSetup() {
+    }
+
+    /**
+     * Ensures the animations are disabled (or enabled), granting the
+     * {@link Manifest.permission#SET_ANIMATION_SCALE} permission regardless of the Android API if
+     * needed. Does nothing if the device is already in the required state.
+     *
+     * @param disabled <code>true</code> to disable the animations
+     * @throws Exception due to shell errors or if the permission couldn't be granted
+     */
+    public static synchronized void requireAnimationsDisabled(boolean disabled) throws Exception {
+        if (animationsChanged && animationsDisabled == disabled) {
+            return;
+        }
+
+        grantAnimationScalePermission();
+        if (disabled) {
+            AnimationScaleUtils.disableAnimations();
+        } else {
+            AnimationScaleUtils.enableAnimations();
+        }
+        animationsChanged = true;
+        animationsDisabled = disabled;
+        Log.i(TAG, "requireAnimationsDisabled: animations " + (disabled ? "disabled" : "enabled"));
+    }
+
+    /**
+     * Restores the state changed during the run, called once all the tests finished.
+     */
+    public static synchronized void restore() {
+        if (animationsChanged) {
+            AnimationScaleUtils.restoreAnimations();
+            animationsChanged = false;
+            Log.i(TAG, "restore: animations restored");
+        }
+    }
+
+    private static void grantAnimationScalePermission() throws Exception {
+        if (animationScalePermissionGranted) {
+            return;
+        }
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        String permission = Manifest.permission.SET_ANIMATION_SCALE;
+        if (ContextCompat.checkSelfPermission(context, permission)
+                != PackageManager.PERMISSION_GRANTED) {
+            PermissionRule.grantPermissions(context.getPackageName(), new String[]{permission});
+            Assert.assertTrue("Unable to GRANT permission " + permission,
+                    PermissionGrantWaiter.awaitGranted(context, permission));
+        }
+        animationScalePermissionGranted = true;
+    }
+}
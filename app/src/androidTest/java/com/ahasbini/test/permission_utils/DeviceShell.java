@@ -0,0 +1,89 @@
+package com.ahasbini.test.permission_utils;
+
+import android.app.UiAutomation;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/**
+ * Provides the {@link ShellExecutor} used by the tests to run <code>pm</code> and other shell
+ * commands. On Android S and above, a single long-lived {@link ShellSession} is started with
+ * <code>UiAutomation.executeShellCommandRwe()</code> (looked up by reflection as it's newer than the
+ * compile SDK). Earlier devices (all of those targeted by the compile SDK) can't write to a shell
+ * started by the instrumentation, hence they don't get a persistent session and fall back to
+ * {@link UiDeviceShellExecutor}, which starts a shell per call or batch of commands. The session is
+ * closed by {@link PermissionRunListener} when the run finishes.
+ */
+
+public class DeviceShell {
+
+    private static final String TAG = DeviceShell.class.getSimpleName();
+
+    private static final int VERSION_CODES_S = 31;
+
+    private static ShellExecutor executor;
+
+    private DeviceShell() {
+    }
+
+    public static synchronized ShellExecutor get() {
+        if (executor == null) {
+            executor = startSession();
+        }
+        if (executor == null) {
+            executor = new UiDeviceShellExecutor();
+        }
+        return executor;
+    }
+
+    public static synchronized void close() {
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close: ", e);
+        }
+        executor = null;
+    }
+
+    private static ShellExecutor startSession() {
+        if (Build.VERSION.SDK_INT < VERSION_CODES_S) {
+            return null;
+        }
+        try {
+            UiAutomation uiAutomation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
+            Method executeShellCommandRwe = UiAutomation.class.getMethod("executeShellCommandRwe",
+                    String.class);
+            final ParcelFileDescriptor[] fds =
+                    (ParcelFileDescriptor[]) executeShellCommandRwe.invoke(uiAutomation, "sh");
+            Log.i(TAG, "startSession: started a persistent shell session");
+            return new ShellSession(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(fds[1]),
+                    new ParcelFileDescriptor.AutoCloseInputStream(fds[0]),
+                    new ParcelFileDescriptor.AutoCloseInputStream(fds[2]),
+                    new Closeable() {
+
+                        @Override
+                        public void close() throws IOException {
+                            for (ParcelFileDescriptor fd : fds) {
+                                try {
+                                    fd.close();
+                                } catch (IOException e) {
+                                    // Already closed by its stream
+                                }
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            Log.w(TAG, "startSession: falling back to a shell per call", e);
+            return null;
+        }
+    }
+}
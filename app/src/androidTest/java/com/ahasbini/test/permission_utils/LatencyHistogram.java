@@ -0,0 +1,77 @@
+package com.ahasbini.test.permission_utils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in milliseconds with power of two buckets, bucket
+ * <code>i</code> counting the latencies lower than <code>2^i</code> (the last one counting all the
+ * rest).
+ */
+
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 16;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long millis) {
+        millis = Math.max(0, millis);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(millis));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        long currentMax;
+        while (millis > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, millis)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return the histogram as <code>{"count": n, "sum": ms, "max": ms, "buckets": [{"lt": ms,
+     * "count": n}]}</code>, skipping empty buckets
+     * @throws JSONException due to invalid values
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONArray bucketsJson = new JSONArray();
+        for (int i = 0; i < BUCKETS; i++) {
+            long bucketCount = buckets.get(i);
+            if (bucketCount > 0) {
+                bucketsJson.put(new JSONObject()
+                        .put("lt", i == BUCKETS - 1 ? -1 : 1L << i)
+                        .put("count", bucketCount));
+            }
+        }
+        return new JSONObject()
+                .put("count", count.get())
+                .put("sum", sum.get())
+                .put("max", max.get())
+                .put("buckets", bucketsJson);
+    }
+}
@@ -0,0 +1,183 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Waits for granted permissions to appear in the checks of the Android System. Returns as soon as
+ * the permissions are seen as granted instead of sleeping for a fixed time. On Marshmallow and above
+ * it tries to register the hidden {@link PackageManager} permissions change listener to be woken up
+ * on changes, otherwise (or if the listener isn't accessible) it polls with a short adaptive backoff.
+ * The wait is bounded by {@link #setTimeout(long)}, and the time each confirmation took is recorded.
+ */
+
+public class PermissionGrantWaiter {
+
+    private static final String TAG = PermissionGrantWaiter.class.getSimpleName();
+
+    private static final long DEFAULT_TIMEOUT = 2000;
+    private static final long MIN_BACKOFF = 2;
+    private static final long MAX_BACKOFF = 64;
+
+    private static final Object lock = new Object();
+    private static volatile long timeout = DEFAULT_TIMEOUT;
+    private static boolean listenerRegistered;
+    private static int changes;
+
+    private static long confirmations;
+    private static long totalWaitMillis;
+    private static long maxWaitMillis;
+    private static long lastWaitMillis;
+
+    private PermissionGrantWaiter() {
+    }
+
+    /**
+     * @param timeout upper bound in milliseconds for a single confirmation
+     */
+    public static void setTimeout(long timeout) {
+        PermissionGrantWaiter.timeout = timeout;
+    }
+
+    public static long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Blocks until all the permissions are granted to the app of the context or the timeout passes.
+     *
+     * @param context     context of the app, should not be a {@link CustomBuildContext}
+     * @param permissions one or more of {@link android.Manifest.permission}
+     * @return <code>true</code> if all permissions were seen as granted, <code>false</code> otherwise
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public static boolean awaitGranted(Context context, String... permissions)
+            throws InterruptedException {
+        long start = SystemClock.elapsedRealtime();
+        registerListener(context);
+
+        boolean granted;
+        long backoff = MIN_BACKOFF;
+        long deadline = start + timeout;
+        while (true) {
+            int seenChanges;
+            synchronized (lock) {
+                seenChanges = changes;
+            }
+            granted = isGranted(context, permissions);
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (granted || remaining <= 0) {
+                break;
+            }
+
+            synchronized (lock) {
+                // Skipping the wait if the listener has been notified since the check
+                if (changes == seenChanges) {
+                    lock.wait(Math.min(backoff, remaining));
+                }
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+
+        record(SystemClock.elapsedRealtime() - start, granted);
+        return granted;
+    }
+
+    /**
+     * @return the time in milliseconds the last confirmation took
+     */
+    public static long getLastWaitMillis() {
+        synchronized (lock) {
+            return lastWaitMillis;
+        }
+    }
+
+    /**
+     * @return the longest time in milliseconds a confirmation took
+     */
+    public static long getMaxWaitMillis() {
+        synchronized (lock) {
+            return maxWaitMillis;
+        }
+    }
+
+    /**
+     * @return the average time in milliseconds a confirmation took
+     */
+    public static long getAverageWaitMillis() {
+        synchronized (lock) {
+            return confirmations == 0 ? 0 : totalWaitMillis / confirmations;
+        }
+    }
+
+    private static boolean isGranted(Context context, String[] permissions) {
+        for (String permission : permissions) {
+            if (ContextCompat.checkSelfPermission(context, permission)
+                    != PackageManager.PERMISSION_GRANTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void record(long waitMillis, boolean granted) {
+        synchronized (lock) {
+            confirmations++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+            lastWaitMillis = waitMillis;
+        }
+        Log.i(TAG, "awaitGranted: " + (granted ? "confirmed" : "timed out") + " after "
+                + waitMillis + "ms");
+    }
+
+    /**
+     * Registers the hidden <code>PackageManager.OnPermissionsChangedListener</code> once. The
+     * listener requires a system permission on most releases, hence failures are expected and the
+     * backoff polling remains in place.
+     */
+    private static void registerListener(Context context) {
+        synchronized (lock) {
+            if (listenerRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+                return;
+            }
+            listenerRegistered = true;
+        }
+
+        try {
+            Class<?> listenerClazz =
+                    Class.forName("android.content.pm.PackageManager$OnPermissionsChangedListener");
+            Object listener = Proxy.newProxyInstance(listenerClazz.getClassLoader(),
+                    new Class<?>[]{listenerClazz}, new InvocationHandler() {
+
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if (method.getDeclaringClass() == Object.class) {
+                                return method.getName().equals("equals") ? proxy == args[0]
+                                        : method.getName().equals("hashCode")
+                                        ? System.identityHashCode(proxy) : TAG;
+                            }
+                            synchronized (lock) {
+                                changes++;
+                                lock.notifyAll();
+                            }
+                            return null;
+                        }
+                    });
+            Method addListener = PackageManager.class.getMethod("addOnPermissionsChangeListener",
+                    listenerClazz);
+            addListener.invoke(context.getPackageManager(), listener);
+            Log.i(TAG, "registerListener: listening for permission changes");
+        } catch (Exception e) {
+            Log.i(TAG, "registerListener: falling back to polling, " + e);
+        }
+    }
+}
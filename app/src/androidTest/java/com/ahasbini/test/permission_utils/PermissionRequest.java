@@ -0,0 +1,64 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.Arrays;
+
+/**
+ * A record of a request for permissions sent by the app to
+ * {@link android.support.v4.app.ActivityCompat.PermissionCompatDelegate} along with the results
+ * delivered back to it. Times are in milliseconds of {@link android.os.SystemClock#elapsedRealtime()}.
+ */
+
+public class PermissionRequest {
+
+    private final String[] permissions;
+    private final int requestCode;
+    private final int[] grantResults;
+    private final long requestedAt;
+    private final long resultDeliveredAt;
+
+    PermissionRequest(String[] permissions, int requestCode, int[] grantResults, long requestedAt,
+                      long resultDeliveredAt) {
+        this.permissions = permissions.clone();
+        this.requestCode = requestCode;
+        this.grantResults = grantResults.clone();
+        this.requestedAt = requestedAt;
+        this.resultDeliveredAt = resultDeliveredAt;
+    }
+
+    public String[] getPermissions() {
+        return permissions.clone();
+    }
+
+    public int getRequestCode() {
+        return requestCode;
+    }
+
+    public int[] getGrantResults() {
+        return grantResults.clone();
+    }
+
+    public long getRequestedAt() {
+        return requestedAt;
+    }
+
+    public long getResultDeliveredAt() {
+        return resultDeliveredAt;
+    }
+
+    /**
+     * @return the time in milliseconds between the request and the delivery of the results
+     */
+    public long getDuration() {
+        return resultDeliveredAt - requestedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionRequest{" +
+                "permissions=" + Arrays.toString(permissions) +
+                ", requestCode=" + requestCode +
+                ", grantResults=" + Arrays.toString(grantResults) +
+                ", duration=" + getDuration() +
+                '}';
+    }
+}
@@ -0,0 +1,124 @@
+package com.ahasbini.test.permission_utils;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Merges the requests for permissions which the app sends within a short window (for example an
+ * activity and its fragments requesting in the same frame) into a single batch. The batch is handed
+ * to the {@link Callback} on a {@link PermissionRequestExecutor} worker, so that the merged
+ * permissions are granted once while each requester still gets its own results. Requests are only
+ * merged with the ones of activities bound to the same {@link PermissionSession}, each session
+ * having its own batch and window.
+ */
+
+class PermissionRequestCoalescer {
+
+    private static final String TAG = PermissionRequestCoalescer.class.getSimpleName();
+
+    private static final long DEFAULT_WINDOW = 16;
+
+    interface Callback {
+
+        /**
+         * Called on a worker thread with the requests in the order they were sent.
+         */
+        void onBatch(List<PendingRequest> batch);
+    }
+
+    static class PendingRequest {
+
+        final Activity activity;
+        final String[] permissions;
+        final int requestCode;
+        final long requestedAt;
+        final PermissionSession session;
+
+        PendingRequest(Activity activity, String[] permissions, int requestCode, long requestedAt) {
+            this.activity = activity;
+            this.session = PermissionSession.of(activity);
+            this.permissions = permissions;
+            this.requestCode = requestCode;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    private final Callback callback;
+    private final Map<PermissionSession, List<PendingRequest>> pending = new HashMap<>();
+    private volatile long window = DEFAULT_WINDOW;
+
+    PermissionRequestCoalescer(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * @param window time in milliseconds to wait for more requests after the first one, 0 to still
+     *               merge requests sent within the same main looper message
+     */
+    void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Adds the request to the pending batch of the session of the activity, scheduling the batch to
+     * be handled after the window if it's the first request.
+     */
+    void submit(Activity activity, String[] permissions, int requestCode) {
+        PendingRequest request = new PendingRequest(activity, permissions.clone(), requestCode,
+                SystemClock.elapsedRealtime());
+        boolean first;
+        synchronized (pending) {
+            List<PendingRequest> batch = pending.get(request.session);
+            first = batch == null;
+            if (first) {
+                batch = new ArrayList<>();
+                pending.put(request.session, batch);
+            }
+            batch.add(request);
+        }
+        if (first) {
+            new Handler(activity.getMainLooper()).postDelayed(new Flush(request.session), window);
+        }
+    }
+
+    /**
+     * Hands the pending batch of the session to the {@link Callback}.
+     */
+    private class Flush implements Runnable {
+
+        private final PermissionSession session;
+
+        Flush(PermissionSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            final List<PendingRequest> batch;
+            synchronized (pending) {
+                batch = pending.remove(session);
+            }
+            Log.i(TAG, "run: handling " + batch.size() + " coalesced request(s) of " + session);
+            try {
+                PermissionRequestExecutor.execute(session, new Runnable() {
+
+                    @Override
+                    public void run() {
+                        callback.onBatch(batch);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Reported to the test by the executor, the requests won't be answered
+                PermissionRequestIdlingResource.getInstance().decrement(batch.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.ahasbini.test.permission_utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable worker threads used by {@link PermissionRule} to handle the requests
+ * received by its {@link android.support.v4.app.ActivityCompat.PermissionCompatDelegate}, with a
+ * bounded queue of pending tasks beyond which tasks are rejected. Failures (such as failed asserts)
+ * on the workers are collected per {@link PermissionSession} so that they can be reported on the
+ * thread of the test of that session through {@link #drainFailures(PermissionSession)}, and the
+ * pool is shut down by {@link PermissionRunListener} when the test run finishes.
+ */
+
+public class PermissionRequestExecutor {
+
+    private static final String TAG = PermissionRequestExecutor.class.getSimpleName();
+
+    private static final int MAX_WORKERS = 2;
+    private static final int MAX_QUEUED_TASKS = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+    private static final Map<PermissionSession, List<Throwable>> failures = new HashMap<>();
+    private static ThreadPoolExecutor executor;
+
+    private PermissionRequestExecutor() {
+    }
+
+    /**
+     * Runs the task on one of the workers, creating the pool if it isn't running.
+     *
+     * @param session the session of the requests handled by the task, its failures are reported to
+     *                the tests of that session
+     * @throws RejectedExecutionException if the workers are busy and the queue is full, which is
+     *                                    also reported to the tests of the session
+     */
+    public static void execute(final PermissionSession session, final Runnable task) {
+        try {
+            getExecutor().execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        Log.e(TAG, "run: request handling failed", t);
+                        addFailure(session, t);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "execute: request handling rejected", e);
+            addFailure(session, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Clears the failures that occurred on the workers for the session since the last call.
+     *
+     * @return the first failure with any other failures added to it as suppressed,
+     * <code>null</code> if none occurred
+     */
+    public static Throwable drainFailures(PermissionSession session) {
+        List<Throwable> sessionFailures;
+        synchronized (failures) {
+            sessionFailures = failures.remove(session);
+        }
+        if (sessionFailures == null) {
+            return null;
+        }
+        Throwable failure = sessionFailures.get(0);
+        for (int i = 1; i < sessionFailures.size(); i++) {
+            failure.addSuppressed(sessionFailures.get(i));
+        }
+        return failure;
+    }
+
+    private static void addFailure(PermissionSession session, Throwable failure) {
+        synchronized (failures) {
+            List<Throwable> sessionFailures = failures.get(session);
+            if (sessionFailures == null) {
+                sessionFailures = new ArrayList<>();
+                failures.put(session, sessionFailures);
+            }
+            sessionFailures.add(failure);
+        }
+    }
+
+    /**
+     * Shuts down the workers after the pending tasks are done, waiting for them for a while.
+     */
+    public static void shutdown() {
+        ExecutorService current;
+        synchronized (PermissionRequestExecutor.class) {
+            current = executor;
+            executor = null;
+        }
+        if (current == null) {
+            return;
+        }
+
+        current.shutdown();
+        try {
+            if (!current.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Log.w(TAG, "shutdown: workers didn't finish in time");
+                current.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            current.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_QUEUED_TASKS),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "PermissionRequest-"
+                                    + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+}
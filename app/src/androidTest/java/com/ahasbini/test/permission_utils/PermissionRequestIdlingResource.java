@@ -0,0 +1,72 @@
+package com.ahasbini.test.permission_utils;
+
+import android.support.test.espresso.IdlingResource;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link IdlingResource} counting the requests for permissions which the delegate of
+ * {@link PermissionRule} is handling, from the moment the app calls
+ * <code>requestPermissions()</code> until <code>onRequestPermissionsResult()</code> has been
+ * delivered. Registered with Espresso by {@link PermissionRule} until the run finishes, hence
+ * Espresso waits for the requests to complete before performing the next action or assertion.
+ */
+
+public final class PermissionRequestIdlingResource implements IdlingResource {
+
+    private static final PermissionRequestIdlingResource instance =
+            new PermissionRequestIdlingResource();
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile ResourceCallback resourceCallback;
+
+    private PermissionRequestIdlingResource() {
+    }
+
+    public static PermissionRequestIdlingResource getInstance() {
+        return instance;
+    }
+
+    @Override
+    public String getName() {
+        return PermissionRequestIdlingResource.class.getName();
+    }
+
+    @Override
+    public boolean isIdleNow() {
+        return pending.get() == 0;
+    }
+
+    @Override
+    public void registerIdleTransitionCallback(ResourceCallback resourceCallback) {
+        this.resourceCallback = resourceCallback;
+    }
+
+    /**
+     * @return the number of requests which results are not delivered yet
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Called when the app sends a request.
+     */
+    void increment() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * Called when the results of requests are delivered, or when they can't be delivered anymore.
+     *
+     * @param count number of requests
+     */
+    void decrement(int count) {
+        if (count > 0 && pending.addAndGet(-count) == 0) {
+            ResourceCallback callback = resourceCallback;
+            if (callback != null) {
+                callback.onTransitionToIdle();
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the {@link PermissionRequest}s of the activities bound to a {@link PermissionSession}
+ * delivered while a {@link PermissionRule} is active, and wakes up the waiting test as soon as one
+ * is posted.
+ */
+
+class PermissionRequestRecorder {
+
+    private final LinkedBlockingQueue<PermissionRequest> requests = new LinkedBlockingQueue<>();
+    private final PermissionSession session;
+
+    PermissionRequestRecorder(PermissionSession session) {
+        this.session = session;
+    }
+
+    /**
+     * @return the session whose activities' requests are recorded
+     */
+    PermissionSession getSession() {
+        return session;
+    }
+
+    void record(PermissionRequest request) {
+        requests.offer(request);
+    }
+
+    /**
+     * Takes the oldest recorded request, blocking until one is recorded or the timeout passes.
+     *
+     * @param timeout in milliseconds
+     * @return the request or <code>null</code> if none was recorded within the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    PermissionRequest await(long timeout) throws InterruptedException {
+        return requests.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    void clear() {
+        requests.clear();
+    }
+}
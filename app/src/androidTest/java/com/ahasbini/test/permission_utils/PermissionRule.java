@@ -7,10 +7,12 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.test.InstrumentationRegistry;
-import android.support.test.uiautomator.UiDevice;
+import android.support.test.espresso.IdlingRegistry;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -20,11 +22,19 @@ import org.junit.rules.TestRule;
 import org.junit.runner.Description;
 import org.junit.runners.model.Statement;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.Semaphore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
- * Class to manage the permissions necessary for the tests execution. It uses {@link UiDevice} to
+ * Class to manage the permissions necessary for the tests execution. It uses {@link DeviceShell} to
  * run pm commands using the shell user. Also replaces the {@link ActivityCompat.PermissionCompatDelegate}
  * with a custom implementation to simulate test cases.
  * <p></p>
@@ -32,7 +42,6 @@ import java.util.concurrent.Semaphore;
  */
 
 // TODO: 08-Mar-18 ahasbini: implement handling for REVOKE_WITH_RATIONALE
-// TODO: 08-Mar-18 ahasbini: improve upon semaphore implementation (use acquire instead of tryAcquire) and try to make it non-static
 public class PermissionRule implements TestRule {
 
     private static final String TAG = PermissionRule.class.getSimpleName();
@@ -44,14 +53,23 @@ public class PermissionRule implements TestRule {
     }
 
     private final Type type;
-    private final String permission;
+    private final String[] permissions;
     private final boolean force;
-    private static final Semaphore requestPermissionSemaphore = new Semaphore(0);
+    private final PermissionSession session;
+    static final LatencyHistogram grantLatency = new LatencyHistogram();
+    static final LatencyHistogram requestLatency = new LatencyHistogram();
 
-    private PermissionRule(Type type, String permission, boolean force) {
+    private final PermissionRequestRecorder requestRecorder;
+    private static final Map<PermissionSession, List<PermissionRequestRecorder>>
+            activeRequestRecorders = new HashMap<>();
+
+    private PermissionRule(Type type, String[] permissions, boolean force,
+                           PermissionSession session) {
         this.type = type;
-        this.permission = permission;
+        this.permissions = permissions;
         this.force = force;
+        this.session = session;
+        this.requestRecorder = new PermissionRequestRecorder(session);
         if (ActivityCompat.getPermissionCompatDelegate() != permissionCompatDelegate) {
             if (ActivityCompat.getPermissionCompatDelegate() != null) {
                 Log.i(TAG, "PermissionRule: ActivityCompat.getPermissionCompatDelegate() "
@@ -59,6 +77,7 @@ public class PermissionRule implements TestRule {
                 Log.w(TAG, "PermissionRule: replacing PermissionCompatDelegate");
             }
             ActivityCompat.setPermissionCompatDelegate(permissionCompatDelegate);
+            IdlingRegistry.getInstance().register(PermissionRequestIdlingResource.getInstance());
         }
     }
 
@@ -82,7 +101,33 @@ public class PermissionRule implements TestRule {
      * @return {@link TestRule} to check and modify if necessary.
      */
     public static PermissionRule grant(String permission, boolean force) {
-        return new PermissionRule(Type.GRANT, permission, force);
+        return new PermissionRule(Type.GRANT, new String[]{permission}, force,
+                PermissionSession.getDefault());
+    }
+
+    /**
+     * Grants the permissions that are not granted yet using a single shell command if device
+     * Android API is Marshmallow or greater.
+     *
+     * @param permissions one or more of {@link Manifest.permission}
+     * @return {@link TestRule} to check and modify if necessary.
+     * @see PermissionRule#grantAll(boolean, String...)
+     */
+    public static PermissionRule grantAll(String... permissions) {
+        return grantAll(false, permissions);
+    }
+
+    /**
+     * Grants the permissions that are not granted yet using a single shell command.
+     *
+     * @param force       grants permissions regardless of Android API if <code>true</code>,
+     *                    otherwise doesn't and continues test execution
+     * @param permissions one or more of {@link Manifest.permission}
+     * @return {@link TestRule} to check and modify if necessary.
+     */
+    public static PermissionRule grantAll(boolean force, String... permissions) {
+        return new PermissionRule(Type.GRANT, permissions.clone(), force,
+                PermissionSession.getDefault());
     }
 
     /**
@@ -105,31 +150,78 @@ public class PermissionRule implements TestRule {
      * @return {@link TestRule} to check and modify if necessary.
      */
     public static PermissionRule revoke(String permission, boolean force) {
-        return new PermissionRule(Type.REVOKE, permission, force);
+        return new PermissionRule(Type.REVOKE, new String[]{permission}, force,
+                PermissionSession.getDefault());
+    }
+
+    /**
+     * Creates the same rule scoped to the session, hence overriding the permissions and recording
+     * the requests of the activities bound to that session only. Allows independent scenarios to
+     * run concurrently in the same process.
+     *
+     * @param session created by {@link PermissionSession#create()}
+     * @return {@link TestRule} to check and modify if necessary.
+     */
+    public PermissionRule inSession(PermissionSession session) {
+        return new PermissionRule(type, permissions, force, session);
     }
 
     /**
      * Checks if the app has sent a request to {@link PermissionRule#permissionCompatDelegate}
-     * within a set timeout. Blocks the thread during the timeout.
+     * within a set timeout. Blocks the thread until the request is handled or the timeout passes.
      * @param timeout in milliseconds
      * @return <code>true</code> if the app has requested permissions, <code>false</code> otherwise
+     * @see PermissionRule#awaitRequestPermission(long)
      */
     public boolean isRequestPermissionCalled(long timeout) {
         try {
-            if (requestPermissionSemaphore.tryAcquire()) {
-                return true;
-            }
-
-            Thread.sleep(timeout);
-
-            return requestPermissionSemaphore.tryAcquire();
+            return awaitRequestPermission(timeout) != null;
         } catch (InterruptedException e) {
             Log.w(TAG, "isRequestPermissionCalled: ", e);
+            Thread.currentThread().interrupt();
         }
 
         return false;
     }
 
+    /**
+     * Waits for the app to send a request to {@link PermissionRule#permissionCompatDelegate} while
+     * this rule is active, returning as soon as the results are delivered back to the app. Each
+     * call consumes one request in the order they were handled.
+     * @param timeout in milliseconds
+     * @return the {@link PermissionRequest} or <code>null</code> if none was handled in the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public PermissionRequest awaitRequestPermission(long timeout) throws InterruptedException {
+        return requestRecorder.await(timeout);
+    }
+
+    /**
+     * Sets the window in which requests for permissions sent by the app are merged and granted
+     * together by {@link PermissionRule#permissionCompatDelegate}.
+     * @param window in milliseconds
+     */
+    public static void setRequestCoalescingWindow(long window) {
+        requestCoalescer.setWindow(window);
+    }
+
+    /**
+     * Writes the permission checks traced by {@link PermissionTraceBuffer} to logcat. They are
+     * dumped automatically when a test fails.
+     */
+    public static void dumpPermissionTraces() {
+        PermissionTraceBuffer.getInstance().dump();
+    }
+
+    /**
+     * Writes the permission checks traced by {@link PermissionTraceBuffer} to the file.
+     * @param file to be written
+     * @throws IOException due to write error
+     */
+    public static void dumpPermissionTraces(File file) throws IOException {
+        PermissionTraceBuffer.getInstance().dump(file);
+    }
+
     @Override
     public Statement apply(final Statement base, final Description description) {
         return new Statement() {
@@ -137,72 +229,338 @@ public class PermissionRule implements TestRule {
             @Override
             public void evaluate() throws Throwable {
                 Log.i(TAG, "evaluate: called");
+                requestRecorder.clear();
+                setRecorderActive(requestRecorder, true);
+                Throwable failure = null;
+                try {
+                    evaluateRule(base, description);
+                } catch (Throwable t) {
+                    // Dumping the traced permission checks to help investigating the failure
+                    Log.w(TAG, "evaluate: " + description + " failed, dumping permission traces");
+                    PermissionTraceBuffer.getInstance().dump();
+                    failure = t;
+                } finally {
+                    setRecorderActive(requestRecorder, false);
+                }
+                // Reporting failures that occurred while handling requests of the test, even if it
+                // failed, so that they aren't blamed on the next test
+                failure = addFailure(failure, PermissionRequestExecutor.drainFailures(session));
+                // The divergence from the trace being replayed is reported once the whole test
+                // finished, by PermissionRunListener
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        };
+    }
+
+    /**
+     * Adds or removes the recorder from the active recorders of its session.
+     */
+    private static void setRecorderActive(PermissionRequestRecorder recorder, boolean active) {
+        synchronized (activeRequestRecorders) {
+            List<PermissionRequestRecorder> recorders =
+                    activeRequestRecorders.get(recorder.getSession());
+            if (active) {
+                if (recorders == null) {
+                    recorders = new ArrayList<>();
+                    activeRequestRecorders.put(recorder.getSession(), recorders);
+                }
+                recorders.add(recorder);
+            } else if (recorders != null) {
+                recorders.remove(recorder);
+                if (recorders.isEmpty()) {
+                    activeRequestRecorders.remove(recorder.getSession());
+                }
+            }
+        }
+    }
 
-                if (!force && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
-                    Log.w(TAG, "permissions on pre-Marshmallow don't need to be managed");
-                    if (type == Type.GRANT) {
-                        base.evaluate();
-                    } else {
-                        Log.w(TAG, "ignoring " + description + " test case with REVOKE permission rule");
-                    }
+    /**
+     * @return the recorders active for the requests of the session
+     */
+    private static List<PermissionRequestRecorder> getActiveRecorders(PermissionSession session) {
+        synchronized (activeRequestRecorders) {
+            List<PermissionRequestRecorder> recorders = activeRequestRecorders.get(session);
+            return recorders == null ? Collections.<PermissionRequestRecorder>emptyList()
+                    : new ArrayList<>(recorders);
+        }
+    }
+
+    /**
+     * @return the failure of the test with the other failure added to it as suppressed, or the
+     * other failure if the test didn't fail
+     */
+    private static Throwable addFailure(Throwable failure, Throwable other) {
+        if (failure == null) {
+            return other;
+        }
+        if (other != null) {
+            failure.addSuppressed(other);
+        }
+        return failure;
+    }
+
+    private void evaluateRule(Statement base, Description description) throws Throwable {
+        if (!force && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "permissions on pre-Marshmallow don't need to be managed");
+            if (type == Type.GRANT) {
+                base.evaluate();
+            } else {
+                Log.w(TAG, "ignoring " + description + " test case with REVOKE permission rule");
+            }
+            return;
+        }
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        switch (type) {
+            case GRANT:
+                // Replayed checks don't depend on the permissions granted to the app
+                if (traceRecorder.isReplaying()) {
+                    base.evaluate();
+                    return;
+                }
+
+                // Permissions already meeting rule requirement are skipped
+                String[] missing = getMissingPermissions(context, permissions);
+                if (missing.length == 0) {
+                    base.evaluate();
                     return;
                 }
 
-                Context context = InstrumentationRegistry.getTargetContext();
-                switch (type) {
-                    case GRANT:
-                        // Permission already meeting rule requirement, continuing test
-                        if (ContextCompat.checkSelfPermission(context, permission) ==
-                                PackageManager.PERMISSION_GRANTED) {
-                            base.evaluate();
-                            return;
-                        }
-
-                        // Permission needs to be granted
-                        grantPermission(context.getPackageName(), permission);
-
-                        // Checking if grant was successful
-                        if (ContextCompat.checkSelfPermission(context, permission) ==
-                                PackageManager.PERMISSION_GRANTED) {
-                            base.evaluate();
-                            return;
-                        }
-
-                        // Waiting for grant to be appear in check
-                        Thread.sleep(500);
-                        Assert.assertTrue("Unable to " + type.name() + " permission",
-                                ContextCompat.checkSelfPermission(context, permission) ==
-                                        PackageManager.PERMISSION_GRANTED);
-                        break;
-                    case REVOKE:
-                        CustomBuildBaseActivity.permissionOverrideMap.put(permission, PackageManager.PERMISSION_DENIED);
-                        CustomBuildBaseActivity.shouldShowRequestPermissionRationaleMap.put(permission, true);
-                        base.evaluate();
-                        CustomBuildBaseActivity.permissionOverrideMap.remove(permission);
-                        CustomBuildBaseActivity.shouldShowRequestPermissionRationaleMap.remove(permission);
-                        break;
-                    case REVOKE_WITH_RATIONALE:
-                        CustomBuildBaseActivity.permissionOverrideMap.put(permission, PackageManager.PERMISSION_DENIED);
-                        CustomBuildBaseActivity.shouldShowRequestPermissionRationaleMap.put(permission, false);
-                        base.evaluate();
-                        CustomBuildBaseActivity.permissionOverrideMap.remove(permission);
-                        CustomBuildBaseActivity.shouldShowRequestPermissionRationaleMap.remove(permission);
-                        break;
+                // Permissions need to be granted
+                long grantStart = SystemClock.elapsedRealtime();
+                grantPermissions(context.getPackageName(), missing);
+
+                // Waiting for grants to be appear in check
+                boolean granted = PermissionGrantWaiter.awaitGranted(context, missing);
+                grantLatency.record(SystemClock.elapsedRealtime() - grantStart);
+                invalidateRealPermissions(missing);
+                Assert.assertTrue("Unable to " + type.name() + " permissions "
+                        + Arrays.toString(missing), granted);
+                base.evaluate();
+                break;
+            case REVOKE:
+                evaluateWithOverrides(base, true);
+                break;
+            case REVOKE_WITH_RATIONALE:
+                evaluateWithOverrides(base, false);
+                break;
+        }
+    }
+
+    /**
+     * Pushes a scope of denied overrides for the permissions of the rule, evaluates the test then
+     * pops them even if the test failed, restoring the overrides of any outer rules.
+     */
+    private void evaluateWithOverrides(Statement base, boolean showRationale) throws Throwable {
+        PermissionOverrideStore.Scope[] scopes =
+                new PermissionOverrideStore.Scope[permissions.length];
+        try {
+            for (int i = 0; i < permissions.length; i++) {
+                scopes[i] = session.getStore().push(permissions[i],
+                        PackageManager.PERMISSION_DENIED, showRationale);
+            }
+            base.evaluate();
+        } finally {
+            for (int i = permissions.length - 1; i >= 0; i--) {
+                if (scopes[i] != null) {
+                    session.getStore().pop(scopes[i]);
                 }
             }
-        };
+        }
     }
 
     /**
      * Method that gets shell access with the privileges to grant permissions to apps, and runs
-     * a command to grant the requested permission to the app.
+     * the commands to grant the requested permissions to the app through {@link DeviceShell},
+     * which sends them all within a single shell.
      * @param packageName package name (application id) of the app
-     * @param permission requested permission to granted
-     * @throws IOException due to command error
+     * @param permissions requested permissions to granted
+     * @throws IOException due to shell error
+     */
+    static void grantPermissions(String packageName, String[] permissions) throws IOException {
+        for (ShellResult result : PermissionRequestDispatcher.grantPermissions(DeviceShell.get(),
+                packageName, permissions)) {
+            if (!result.isSuccessful()) {
+                Log.w(TAG, "grantPermissions: " + result);
+            }
+        }
+    }
+
+    /**
+     * Drops the results of the permissions cached by {@link RealPermissionCache} after they've
+     * been granted.
      */
-    private static void grantPermission(String packageName, String permission) throws IOException {
-        UiDevice.getInstance(InstrumentationRegistry.getInstrumentation())
-                .executeShellCommand("pm grant " + packageName + " " + permission);
+    static void invalidateRealPermissions(String[] permissions) {
+        for (String permission : permissions) {
+            RealPermissionCache.getInstance().invalidate(permission);
+        }
+    }
+
+    /**
+     * @return the permissions which are not granted to the app yet, in the requested order
+     */
+    private static String[] getMissingPermissions(Context context, String[] permissions) {
+        return PermissionRequestDispatcher.getMissingPermissions(new DevicePermissionChecker(
+                context), permissions);
+    }
+
+    private static final PermissionTraceRecorder traceRecorder =
+            PermissionTraceRecorder.getInstance();
+
+    private static final PermissionRequestCoalescer requestCoalescer =
+            new PermissionRequestCoalescer(new PermissionRequestCoalescer.Callback() {
+
+                @Override
+                public void onBatch(List<PermissionRequestCoalescer.PendingRequest> batch) {
+                    handleRequests(batch);
+                }
+            });
+
+    /**
+     * Grants the merged permissions of the coalesced requests once through
+     * {@link PermissionRequestDispatcher}, then notifies each requester on the main looper with
+     * its own request code and the tests waiting for the results.
+     * @param batch requests sent by the app within the coalescing window
+     */
+    private static void handleRequests(List<PermissionRequestCoalescer.PendingRequest> batch) {
+        List<DelegateRequest> requests = new ArrayList<>(batch.size());
+        for (PermissionRequestCoalescer.PendingRequest request : batch) {
+            requests.add(new DelegateRequest(request));
+        }
+        Context context = InstrumentationRegistry.getTargetContext();
+        Log.i(TAG, "handleRequests: granting the permissions "
+                + Arrays.toString(PermissionRequestDispatcher.mergePermissions(requests)));
+
+        int posted = 0;
+        try {
+            posted = new PermissionRequestDispatcher(context.getPackageName(), DeviceShell.get(),
+                    new DevicePermissionChecker(context), mainThreadExecutor, grantCallback)
+                    .dispatch(requests);
+        } catch (IOException e) {
+            Log.w(TAG, "handleRequests: couldn't grant permissions", e);
+            throw new AssertionError("Unable to GRANT permissions: " + e);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "handleRequests: ", e);
+            throw new AssertionError("Interrupted while granting permissions");
+        } finally {
+            // Requests which results won't be delivered aren't pending anymore
+            PermissionRequestIdlingResource.getInstance().decrement(batch.size() - posted);
+        }
+    }
+
+    /**
+     * Delivers the recorded results of the request without granting anything, as the checks of
+     * the app are replayed too.
+     */
+    private static void replayRequest(final DelegateRequest request, final int[] grantResults) {
+        request.removeOverrides();
+        try {
+            mainThreadExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    request.deliver(grantResults);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "replayRequest: ", e);
+            PermissionRequestIdlingResource.getInstance().decrement(1);
+        }
+    }
+
+    private static final PermissionRequestDispatcher.GrantCallback grantCallback =
+            new PermissionRequestDispatcher.GrantCallback() {
+
+                @Override
+                public void onGranted(String[] permissions, long elapsed, boolean granted) {
+                    grantLatency.record(elapsed);
+                    invalidateRealPermissions(permissions);
+                    Assert.assertTrue("Unable to GRANT permissions "
+                            + Arrays.toString(permissions), granted);
+                }
+            };
+
+    private static final Executor mainThreadExecutor = new Executor() {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (!handler.post(command)) {
+                throw new RejectedExecutionException("main looper is exiting");
+            }
+        }
+    };
+
+    /**
+     * Checks the permissions granted to the app by the Android System.
+     */
+    private static class DevicePermissionChecker implements PermissionChecker {
+
+        private final Context context;
+
+        DevicePermissionChecker(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public int checkSelfPermission(String permission) {
+            return ContextCompat.checkSelfPermission(context, permission);
+        }
+
+        @Override
+        public boolean awaitGranted(String[] permissions) throws InterruptedException {
+            return PermissionGrantWaiter.awaitGranted(context, permissions);
+        }
+    }
+
+    /**
+     * A request sent by an activity to {@link PermissionRule#permissionCompatDelegate}, whose
+     * overrides are removed in the session of the activity and whose results are delivered to the
+     * activity and to the tests recording the requests of that session.
+     */
+    private static class DelegateRequest implements PermissionRequestDispatcher.Request {
+
+        private final PermissionRequestCoalescer.PendingRequest request;
+
+        DelegateRequest(PermissionRequestCoalescer.PendingRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public String[] getPermissions() {
+            return request.permissions;
+        }
+
+        @Override
+        public void removeOverrides() {
+            PermissionOverrideStore store = request.session.getStore();
+            for (String permission : request.permissions) {
+                store.setPermissionResult(permission, PackageManager.PERMISSION_GRANTED);
+            }
+        }
+
+        @Override
+        public void deliver(int[] grantResults) {
+            try {
+                traceRecorder.recordResult(request.requestCode, request.permissions, grantResults);
+                // Notifying activity
+                request.activity.onRequestPermissionsResult(request.requestCode,
+                        request.permissions, grantResults);
+                // Notifying tests if waiting for result.
+                PermissionRequest result = new PermissionRequest(request.permissions,
+                        request.requestCode, grantResults, request.requestedAt,
+                        SystemClock.elapsedRealtime());
+                requestLatency.record(result.getDuration());
+                for (PermissionRequestRecorder recorder : getActiveRecorders(request.session)) {
+                    recorder.record(result);
+                }
+            } finally {
+                PermissionRequestIdlingResource.getInstance().decrement(1);
+            }
+        }
     }
 
     /**
@@ -212,11 +570,12 @@ public class PermissionRule implements TestRule {
      * {@link ActivityCompat.PermissionCompatDelegate} was intended for instant apps use, however
      * it has a higher priority to be called over the default implementation if set in
      * {@link ActivityCompat} hence providing the opportunity to control and simulate the scenarios
-     * needed for our testing. It will automatically update {@link CustomBuildBaseActivity} to
+     * needed for our testing. Requests sent within a short window are coalesced and granted
+     * together. It will automatically update {@link CustomBuildBaseActivity} to
      * grant the permissions and will also ensure that the permissions are granted by the Android
      * System. Furthermore after granting the permissions, tests could check if request was
      * successful by asserting {@link PermissionRule#isRequestPermissionCalled(long)} true in the
-     * test.
+     * test, while Espresso waits for the requests through {@link PermissionRequestIdlingResource}.
      */
     private static final ActivityCompat.PermissionCompatDelegate permissionCompatDelegate
             = new ActivityCompat.PermissionCompatDelegate() {
@@ -227,68 +586,17 @@ public class PermissionRule implements TestRule {
         public boolean requestPermissions(@NonNull final Activity activity,
                                           @NonNull final String[] permissions, final int requestCode) {
             Log.i(TAG, "requestPermissions: called");
-            Thread permissionsThread = new Thread(new Runnable() {
-
-                @Override
-                public void run() {
-                    final int[] grantedResults = new int[permissions.length];
-                    Context context = InstrumentationRegistry.getTargetContext();
-                    for (int i = 0; i < permissions.length; i++) {
-                        Log.i(TAG, "run: granting the permission " + permissions[i]);
-
-                        // Removing override if set
-                        CustomBuildBaseActivity.permissionOverrideMap.put(permissions[i],
-                                PackageManager.PERMISSION_GRANTED);
-
-                        // Checking if permission is already granted
-                        if (ActivityCompat.checkSelfPermission(
-                                context, permissions[i]) ==
-                                PackageManager.PERMISSION_GRANTED) {
-                            grantedResults[i] = PackageManager.PERMISSION_GRANTED;
-                            continue;
-                        }
-
-                        // Permission needs to be granted
-                        try {
-                            grantPermission(context.getPackageName(), permissions[i]);
-                        } catch (IOException e) {
-                            Log.w(TAG, "run: couldn't grant permissions", e);
-                        }
-
-                        // Checking if grant was successful
-                        if (ActivityCompat.checkSelfPermission(
-                                context, permissions[i]) ==
-                                PackageManager.PERMISSION_GRANTED) {
-                            grantedResults[i] = PackageManager.PERMISSION_GRANTED;
-                            continue;
-                        }
-
-                        // Waiting for grant to be appear in check
-                        try {
-                            Thread.sleep(500);
-                        } catch (InterruptedException e) {
-                            Log.w(TAG, "run: ", e);
-                        }
-
-                        Assert.assertTrue("Unable to GRANT permission",
-                                ActivityCompat.checkSelfPermission(context, permissions[i])
-                                        == PackageManager.PERMISSION_GRANTED);
-                        grantedResults[i] = PackageManager.PERMISSION_GRANTED;
-                    }
-
-                    new Handler(activity.getMainLooper()).post(new Runnable() {
-
-                        @Override
-                        public void run() {
-                            // Notifying activity
-                            activity.onRequestPermissionsResult(requestCode, permissions, grantedResults);
-                            // Notifying test if waiting for result.
-                            requestPermissionSemaphore.release();
-                        }
-                    });
-                }
-            });
-            permissionsThread.start();
+            PermissionRequestIdlingResource.getInstance().increment();
+            traceRecorder.recordRequest(requestCode, permissions);
+            int[] grantResults = traceRecorder.isReplaying()
+                    ? traceRecorder.replayRequest(requestCode, permissions) : null;
+            if (grantResults != null) {
+                replayRequest(new DelegateRequest(new PermissionRequestCoalescer.PendingRequest(
+                        activity, permissions.clone(), requestCode,
+                        SystemClock.elapsedRealtime())), grantResults);
+                return true;
+            }
+            requestCoalescer.submit(activity, permissions, requestCode);
             return true;
         }
 
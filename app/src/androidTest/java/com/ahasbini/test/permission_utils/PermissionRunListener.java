@@ -0,0 +1,186 @@
+package com.ahasbini.test.permission_utils;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.espresso.IdlingRegistry;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.RunListener;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A {@link RunListener} registered with the test runner (see <code>app/build.gradle</code>) to manage
+ * the process-wide state of the permission utils. It resets the {@link PermissionMetrics} and the
+ * latency histograms of {@link PermissionRule} before each test, exports them as JSON to
+ * <code>files/permission-metrics/&lt;class&gt;#&lt;method&gt;.json</code> of the app after each
+ * test (for CI to collect and check against budgets), and cleans up once all the tests finished.
+ * When the <code>permissionProfiling</code> argument is <code>true</code>, the call sites report of
+ * {@link PermissionCheckProfiler} is included in the exported metrics, and when the
+ * <code>permissionCache</code> argument is <code>true</code> the {@link RealPermissionCache} is
+ * enabled. When the <code>permissionTrace</code> argument is <code>record</code>, the
+ * {@link PermissionTrace} of each test is saved to
+ * <code>files/permission-traces/&lt;class&gt;#&lt;method&gt;.trace</code>, and when it's
+ * <code>replay</code> the saved traces are replayed by {@link PermissionTraceRecorder}, writing the
+ * divergences next to them in <code>.diff</code> files. The launches and reuses of
+ * {@link WarmActivityRule} are exported to
+ * <code>files/permission-metrics/warm-activities.json</code> once the run finishes.
+ */
+
+public class PermissionRunListener extends RunListener {
+
+    private static final String TAG = PermissionRunListener.class.getSimpleName();
+
+    private static final String METRICS_DIR = "permission-metrics";
+    private static final String ARGUMENT_PROFILING = "permissionProfiling";
+    private static final String ARGUMENT_CACHE = "permissionCache";
+    private static final String ARGUMENT_TRACE = "permissionTrace";
+    private static final String TRACES_DIR = "permission-traces";
+    private static final String TRACE_RECORD = "record";
+    private static final String TRACE_REPLAY = "replay";
+
+    private String traceMode;
+
+    @Override
+    public void testRunStarted(Description description) throws Exception {
+        // Enabled with: -e permissionProfiling true
+        if (Boolean.parseBoolean(InstrumentationRegistry.getArguments()
+                .getString(ARGUMENT_PROFILING))) {
+            Log.i(TAG, "testRunStarted: profiling permission checks");
+            PermissionCheckProfiler.getInstance().setEnabled(true);
+        }
+        // Enabled with: -e permissionCache true
+        if (Boolean.parseBoolean(InstrumentationRegistry.getArguments()
+                .getString(ARGUMENT_CACHE))) {
+            Log.i(TAG, "testRunStarted: caching real permission results");
+            RealPermissionCache.getInstance().setEnabled(true);
+        }
+        // Enabled with: -e permissionTrace record|replay
+        traceMode = InstrumentationRegistry.getArguments().getString(ARGUMENT_TRACE);
+        if (traceMode != null) {
+            Log.i(TAG, "testRunStarted: permission trace mode " + traceMode);
+        }
+    }
+
+    @Override
+    public void testStarted(Description description) throws Exception {
+        PermissionMetrics.getInstance().reset();
+        PermissionRule.grantLatency.reset();
+        PermissionRule.requestLatency.reset();
+        PermissionCheckProfiler.getInstance().reset();
+        // Permissions might have been changed outside of the rules between the tests
+        RealPermissionCache.getInstance().invalidateAll();
+        if (TRACE_RECORD.equals(traceMode)) {
+            PermissionTraceRecorder.getInstance().startRecording();
+        } else if (TRACE_REPLAY.equals(traceMode)) {
+            File file = getTraceFile(description, ".trace");
+            if (file.exists()) {
+                PermissionTraceRecorder.getInstance().startReplay(PermissionTrace.read(file));
+            } else {
+                Log.w(TAG, "testStarted: no trace to replay for " + description);
+            }
+        }
+    }
+
+    @Override
+    public void testFinished(Description description) throws Exception {
+        try {
+            exportMetrics(description);
+        } catch (Exception e) {
+            Log.w(TAG, "testFinished: couldn't export metrics of " + description, e);
+        }
+        try {
+            finishTrace(description);
+        } catch (Exception e) {
+            Log.w(TAG, "testFinished: couldn't save permission trace of " + description, e);
+        }
+    }
+
+    @Override
+    public void testRunFinished(Result result) throws Exception {
+        Log.i(TAG, "testRunFinished: called");
+        try {
+            JSONObject warmActivities = WarmActivityRule.toJson();
+            if (warmActivities != null) {
+                Log.i(TAG, "testRunFinished: warm activities " + warmActivities);
+                writeMetrics("warm-activities", warmActivities);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "testRunFinished: couldn't export warm activities metrics", e);
+        }
+        // Those of the classes without the class rule of WarmActivityRule
+        WarmActivityRule.finishAll();
+        WarmActivityRule.reset();
+        PermissionRequestExecutor.shutdown();
+        IdlingRegistry.getInstance().unregister(PermissionRequestIdlingResource.getInstance());
+        DeviceSetup.restore();
+        DeviceShell.close();
+    }
+
+    private void finishTrace(Description description) throws Exception {
+        PermissionTraceRecorder traceRecorder = PermissionTraceRecorder.getInstance();
+        if (TRACE_RECORD.equals(traceMode)) {
+            traceRecorder.stop().write(getTraceFile(description, ".trace"));
+        } else if (TRACE_REPLAY.equals(traceMode)) {
+            String divergence = traceRecorder.getDivergence();
+            traceRecorder.stop();
+            File file = getTraceFile(description, ".diff");
+            if (divergence == null) {
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "finishTrace: couldn't delete " + file);
+                }
+                return;
+            }
+            Log.w(TAG, "finishTrace: " + description + " diverged from its trace\n" + divergence);
+            Writer writer = new FileWriter(file);
+            try {
+                writer.write(divergence);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    private static File getTraceFile(Description description, String extension)
+            throws IOException {
+        File dir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(), TRACES_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        return new File(dir, description.getClassName() + "#" + description.getMethodName()
+                + extension);
+    }
+
+    private static void exportMetrics(Description description) throws Exception {
+        JSONObject metrics = new JSONObject()
+                .put("test", description.getDisplayName())
+                .put("checks", PermissionMetrics.getInstance().toJson())
+                .put("grantLatency", PermissionRule.grantLatency.toJson())
+                .put("requestLatency", PermissionRule.requestLatency.toJson());
+        if (PermissionCheckProfiler.getInstance().isEnabled()) {
+            metrics.put("mainThreadCallSites", PermissionCheckProfiler.getInstance().toJson());
+        }
+        writeMetrics(description.getClassName() + "#" + description.getMethodName(), metrics);
+    }
+
+    /**
+     * Writes the metrics to <code>files/permission-metrics/&lt;name&gt;.json</code> of the app.
+     */
+    static void writeMetrics(String name, JSONObject metrics) throws Exception {
+        File dir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(), METRICS_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        Writer writer = new FileWriter(new File(dir, name + ".json"));
+        try {
+            writer.write(metrics.toString(2));
+        } finally {
+            writer.close();
+        }
+    }
+}
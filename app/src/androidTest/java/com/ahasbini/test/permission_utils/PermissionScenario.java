@@ -0,0 +1,71 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of each permission declared with {@link PermissionScenarios} in which the tests are run
+ * by {@link PermissionScenarioRunner}. It's passed to the constructor of the test class when it
+ * takes one.
+ */
+
+public final class PermissionScenario {
+
+    private final String[] permissions;
+    private final PermissionRule.Type[] types;
+
+    PermissionScenario(String[] permissions, PermissionRule.Type[] types) {
+        this.permissions = permissions;
+        this.types = types;
+    }
+
+    public String[] getPermissions() {
+        return permissions.clone();
+    }
+
+    /**
+     * @return the state of the permission in the scenario
+     * @throws IllegalArgumentException if the permission isn't part of the scenarios
+     */
+    public PermissionRule.Type getType(String permission) {
+        int index = Arrays.asList(permissions).indexOf(permission);
+        if (index == -1) {
+            throw new IllegalArgumentException(permission + " isn't part of the scenario");
+        }
+        return types[index];
+    }
+
+    public boolean isGranted(String permission) {
+        return getType(permission) == PermissionRule.Type.GRANT;
+    }
+
+    PermissionStateRule.PermissionPlan toPlan() {
+        Set<String> granted = new LinkedHashSet<>();
+        Map<String, Boolean> revoked = new LinkedHashMap<>();
+        for (int i = 0; i < permissions.length; i++) {
+            if (types[i] == PermissionRule.Type.GRANT) {
+                granted.add(permissions[i]);
+            } else {
+                revoked.put(permissions[i], types[i] == PermissionRule.Type.REVOKE_WITH_RATIONALE);
+            }
+        }
+        return new PermissionStateRule.PermissionPlan(granted, revoked);
+    }
+
+    /**
+     * @return the states of the permissions, appended to the names of the tests
+     */
+    @Override
+    public String toString() {
+        StringBuilder name = new StringBuilder("[");
+        for (int i = 0; i < permissions.length; i++) {
+            name.append(i == 0 ? "" : ",")
+                    .append(permissions[i].substring(permissions[i].lastIndexOf('.') + 1))
+                    .append('=').append(types[i]);
+        }
+        return name.append(']').toString();
+    }
+}
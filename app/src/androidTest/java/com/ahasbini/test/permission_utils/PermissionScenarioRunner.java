@@ -0,0 +1,194 @@
+package com.ahasbini.test.permission_utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.rules.TestRule;
+import org.junit.runner.Runner;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.Suite;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.Statement;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A runner which runs the tests of a class annotated with {@link PermissionScenarios} once per
+ * {@link PermissionScenario}, appending the scenario to the names of the tests. The scenarios are
+ * generated by {@link PermissionScenarioGenerator} to cover the combinations of the states of any
+ * {@link PermissionScenarios#strength()} permissions, and ordered so that consecutive scenarios
+ * share most of their states. All the tests of a scenario run together, so that
+ * {@link PermissionStateRule} only grants the permissions not granted by the previous scenarios,
+ * and a {@link PermissionStateRule} is added to the tests which don't have one.
+ * <p></p>
+ * Once the class finishes, the run time of the scenarios is compared with the time the full matrix
+ * would have taken, estimated from the average time of a scenario, and exported to
+ * <code>files/permission-metrics/&lt;class&gt;#scenarios.json</code> of the app.
+ */
+
+public class PermissionScenarioRunner extends Suite {
+
+    private static final String TAG = PermissionScenarioRunner.class.getSimpleName();
+
+    private final PermissionScenarios scenarios;
+    private final List<Runner> runners = new ArrayList<>();
+    private final long fullMatrixSize;
+    private int scenariosRun;
+    private long elapsed;
+
+    public PermissionScenarioRunner(Class<?> klass) throws InitializationError {
+        super(klass, Collections.<Runner>emptyList());
+        scenarios = klass.getAnnotation(PermissionScenarios.class);
+        if (scenarios == null || scenarios.value().length == 0
+                || scenarios.states().length == 0 || scenarios.strength() < 1) {
+            throw new InitializationError(klass.getName() + " must be annotated with "
+                    + "@PermissionScenarios with permissions, states and a positive strength");
+        }
+
+        String[] permissions = scenarios.value();
+        PermissionRule.Type[] states = scenarios.states();
+        List<int[]> generated = PermissionScenarioGenerator.order(PermissionScenarioGenerator
+                .generate(permissions.length, states.length, scenarios.strength()));
+        for (int[] values : generated) {
+            PermissionRule.Type[] types = new PermissionRule.Type[values.length];
+            for (int i = 0; i < values.length; i++) {
+                types[i] = states[values[i]];
+            }
+            runners.add(new ScenarioRunner(klass, new PermissionScenario(permissions, types)));
+        }
+        fullMatrixSize = PermissionScenarioGenerator.getFullMatrixSize(permissions.length,
+                states.length);
+        Log.i(TAG, "PermissionScenarioRunner: " + klass.getName() + " runs " + runners.size()
+                + " scenarios out of " + fullMatrixSize);
+    }
+
+    @Override
+    protected List<Runner> getChildren() {
+        return runners;
+    }
+
+    @Override
+    public void run(RunNotifier notifier) {
+        super.run(notifier);
+        if (scenariosRun == 0) {
+            return;
+        }
+        try {
+            exportReport();
+        } catch (Exception e) {
+            Log.w(TAG, "run: couldn't export the scenarios report of " + getName(), e);
+        }
+    }
+
+    @Override
+    protected void runChild(Runner runner, RunNotifier notifier) {
+        long start = SystemClock.elapsedRealtime();
+        super.runChild(runner, notifier);
+        elapsed += SystemClock.elapsedRealtime() - start;
+        scenariosRun++;
+    }
+
+    private void exportReport() throws Exception {
+        long estimated = elapsed * fullMatrixSize / scenariosRun;
+        Log.i(TAG, "exportReport: " + getName() + " ran " + scenariosRun + " scenarios in "
+                + elapsed + "ms, saving an estimated " + (estimated - elapsed) + "ms of the "
+                + fullMatrixSize + " scenarios of the full matrix");
+
+        JSONArray names = new JSONArray();
+        for (Runner runner : getChildren()) {
+            names.put(runner.getDescription().getDisplayName());
+        }
+        JSONObject report = new JSONObject()
+                .put("testClass", getName())
+                .put("strength", scenarios.strength())
+                .put("scenarios", names)
+                .put("scenariosRun", scenariosRun)
+                .put("fullMatrixScenarios", fullMatrixSize)
+                .put("elapsedMillis", elapsed)
+                .put("estimatedFullMatrixMillis", estimated)
+                .put("savedMillis", estimated - elapsed);
+        PermissionRunListener.writeMetrics(getName() + "#scenarios", report);
+    }
+
+    /**
+     * Runs the tests of the class in a scenario, the class rules and methods being run once by the
+     * {@link PermissionScenarioRunner} around all the scenarios.
+     */
+    private static class ScenarioRunner extends BlockJUnit4ClassRunner {
+
+        private final PermissionScenario scenario;
+        private final PermissionStateRule.PermissionPlan plan;
+
+        ScenarioRunner(Class<?> klass, PermissionScenario scenario) throws InitializationError {
+            super(klass);
+            this.scenario = scenario;
+            this.plan = scenario.toPlan();
+        }
+
+        @Override
+        protected Object createTest() throws Exception {
+            Constructor<?> constructor = getTestClass().getOnlyConstructor();
+            return constructor.getParameterTypes().length == 0 ? constructor.newInstance()
+                    : constructor.newInstance(scenario);
+        }
+
+        @Override
+        protected void validateZeroArgConstructor(List<Throwable> errors) {
+            if (getTestClass().getJavaClass().getConstructors().length != 1) {
+                // Reported by validateOnlyOneConstructor()
+                return;
+            }
+            Class<?>[] types = getTestClass().getOnlyConstructor().getParameterTypes();
+            if (types.length > 1 || (types.length == 1 && types[0] != PermissionScenario.class)) {
+                errors.add(new Exception("Test class should have exactly one public constructor "
+                        + "with no parameters or a PermissionScenario parameter"));
+            }
+        }
+
+        @Override
+        protected String getName() {
+            return scenario.toString();
+        }
+
+        @Override
+        protected String testName(FrameworkMethod method) {
+            return method.getName() + scenario;
+        }
+
+        @Override
+        protected Statement classBlock(RunNotifier notifier) {
+            return childrenInvoker(notifier);
+        }
+
+        @Override
+        protected Annotation[] getRunnerAnnotations() {
+            return new Annotation[0];
+        }
+
+        @Override
+        protected List<TestRule> getTestRules(Object target) {
+            List<TestRule> rules = super.getTestRules(target);
+            for (TestRule rule : rules) {
+                if (rule instanceof PermissionStateRule) {
+                    return rules;
+                }
+            }
+            rules.add(new PermissionStateRule());
+            return rules;
+        }
+
+        @Override
+        protected void runChild(FrameworkMethod method, RunNotifier notifier) {
+            PermissionStateRule.setScenarioPlan(describeChild(method), plan);
+            super.runChild(method, notifier);
+        }
+    }
+}
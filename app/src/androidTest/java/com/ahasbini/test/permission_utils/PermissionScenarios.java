@@ -0,0 +1,35 @@
+package com.ahasbini.test.permission_utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the permissions whose states are combined by {@link PermissionScenarioRunner} to run
+ * the tests of the class in each {@link PermissionScenario}. Rather than the full matrix of the
+ * states, only enough scenarios to cover every combination of the states of any
+ * {@link #strength()} permissions are run.
+ */
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PermissionScenarios {
+
+    /**
+     * @return one or more of {@link android.Manifest.permission}
+     */
+    String[] value();
+
+    /**
+     * @return the number of permissions whose combined states are all covered, 2 for pairwise
+     * coverage, or the number of permissions or more for the full matrix
+     */
+    int strength() default 2;
+
+    /**
+     * @return the states combined for each permission
+     */
+    PermissionRule.Type[] states() default {PermissionRule.Type.GRANT, PermissionRule.Type.REVOKE,
+            PermissionRule.Type.REVOKE_WITH_RATIONALE};
+}
@@ -0,0 +1,60 @@
+package com.ahasbini.test.permission_utils;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import junit.framework.Assert;
+
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+
+/**
+ * Displays how {@link PermissionScenarioRunner} runs the tests in each state of the permissions
+ * declared with {@link PermissionScenarios}. As the scenarios only differ by the state of the
+ * permissions, the activity is launched once by {@link WarmActivityRule} and reused by the
+ * following scenarios, then finished once the class finishes.
+ */
+
+@RunWith(PermissionScenarioRunner.class)
+@PermissionScenarios(Manifest.permission.READ_EXTERNAL_STORAGE)
+public class PermissionScenariosInstrumentedTest extends BaseTest {
+
+    private static final String TAG = PermissionScenariosInstrumentedTest.class.getSimpleName();
+
+    @ClassRule
+    public static TestRule warmActivities = WarmActivityRule.finishAfterClass();
+
+    @Rule
+    public RuleChain ruleChain = RuleChain
+            .outerRule(new AndroidApiRule(Build.VERSION_CODES.M))
+            .around(activityRule = new WarmActivityRule<>(MainActivity.class));
+
+    private WarmActivityRule<MainActivity> activityRule;
+    private final PermissionScenario scenario;
+
+    public PermissionScenariosInstrumentedTest(PermissionScenario scenario) {
+        this.scenario = scenario;
+    }
+
+    /**
+     * Testing that the activity sees the permission in the state of the scenario.
+     */
+    @Test
+    public void activitySeesScenarioTest() {
+        Log.i(TAG, "activitySeesScenarioTest: starting " + scenario);
+        String permission = Manifest.permission.READ_EXTERNAL_STORAGE;
+        MainActivity activity = activityRule.getActivity();
+        Assert.assertEquals(scenario.isGranted(permission),
+                activity.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED);
+        Assert.assertEquals(scenario.getType(permission) == PermissionRule.Type
+                        .REVOKE_WITH_RATIONALE,
+                activity.shouldShowRequestPermissionRationale(permission));
+        Log.i(TAG, "activitySeesScenarioTest: finished");
+    }
+}
@@ -0,0 +1,258 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Process;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.junit.Assert;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A rule which applies the permission state declared with {@link RequiresPermissions} and
+ * {@link RevokedPermissions} on the test classes and methods. The declared state of each class and
+ * method is resolved once and cached. The permissions to be granted are checked before every test,
+ * as they might have been revoked outside of the rules (such as by <code>pm</code> commands), but
+ * only those which aren't granted are granted, and the checks go through the
+ * {@link RealPermissionCache} when it's enabled. Revoked permissions are overridden in a {@link PermissionOverrideStore.Scope} pushed for the test and
+ * popped when it finishes, as {@link PermissionRule} does, hence they aren't seen by later tests.
+ * <p></p>
+ * The plans are taken from <code>GeneratedPermissionPlans</code> when it's generated by the
+ * <code>:permission-processor</code> module, falling back to reading the annotations for the
+ * classes which it doesn't cover.
+ */
+
+public class PermissionStateRule implements TestRule {
+
+    private static final String TAG = PermissionStateRule.class.getSimpleName();
+
+    private static final String GENERATED_PLANS =
+            PermissionStateRule.class.getPackage().getName() + ".GeneratedPermissionPlans";
+
+    private static final PlanIndex planIndex = loadPlanIndex();
+
+    private static final Map<Class<?>, PermissionPlan> classPlans = new ConcurrentHashMap<>();
+    private static final Map<Description, PermissionPlan> methodPlans = new ConcurrentHashMap<>();
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+
+            @Override
+            public void evaluate() throws Throwable {
+                PermissionPlan plan = getPlan(description);
+                List<PermissionOverrideStore.Scope> scopes = new ArrayList<>(plan.revoked.size());
+                try {
+                    applyPlan(plan, scopes);
+                    base.evaluate();
+                } finally {
+                    PermissionOverrideStore store = PermissionOverrideStore.getInstance();
+                    for (int i = scopes.size() - 1; i >= 0; i--) {
+                        store.pop(scopes.get(i));
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Plans resolved at compile time, implemented by <code>GeneratedPermissionPlans</code>.
+     */
+    interface PlanIndex {
+
+        /**
+         * @return the plan of the test, or <code>null</code> if the class isn't indexed
+         */
+        PermissionPlan getPlan(String testClass, String testMethod);
+    }
+
+    /**
+     * The permission state declared for a test.
+     */
+    static class PermissionPlan {
+
+        static final PermissionPlan EMPTY = new PermissionPlan(Collections.<String>emptySet(),
+                Collections.<String, Boolean>emptyMap());
+
+        final Set<String> granted;
+        final Map<String, Boolean> revoked;
+
+        PermissionPlan(Set<String> granted, Map<String, Boolean> revoked) {
+            this.granted = granted;
+            this.revoked = revoked;
+        }
+
+        /**
+         * @return the plan with the permissions of the other plan taking precedence
+         */
+        PermissionPlan with(PermissionPlan other) {
+            if (other == EMPTY) {
+                return this;
+            }
+            Set<String> newGranted = new LinkedHashSet<>(granted);
+            Map<String, Boolean> newRevoked = new LinkedHashMap<>(revoked);
+            newGranted.removeAll(other.revoked.keySet());
+            newGranted.addAll(other.granted);
+            newRevoked.keySet().removeAll(other.granted);
+            newRevoked.putAll(other.revoked);
+            return new PermissionPlan(newGranted, newRevoked);
+        }
+
+        /**
+         * Creates the plan, used by the generated plans.
+         */
+        static PermissionPlan create(String[] granted, String[] revoked, boolean[] showRationale) {
+            Map<String, Boolean> revokedPermissions = new LinkedHashMap<>();
+            for (int i = 0; i < revoked.length; i++) {
+                revokedPermissions.put(revoked[i], showRationale[i]);
+            }
+            return new PermissionPlan(new LinkedHashSet<>(Arrays.asList(granted)),
+                    revokedPermissions);
+        }
+
+        static PermissionPlan of(RequiresPermissions requires, RevokedPermissions revokes) {
+            if (requires == null && revokes == null) {
+                return EMPTY;
+            }
+            Set<String> granted = new LinkedHashSet<>();
+            Map<String, Boolean> revoked = new LinkedHashMap<>();
+            if (requires != null) {
+                granted.addAll(Arrays.asList(requires.value()));
+            }
+            if (revokes != null) {
+                for (String permission : revokes.value()) {
+                    granted.remove(permission);
+                    revoked.put(permission, revokes.showRationale());
+                }
+            }
+            return new PermissionPlan(granted, revoked);
+        }
+    }
+
+    /**
+     * Resolves the plan of the test, reading the annotations of its class and method only once.
+     */
+    static PermissionPlan getPlan(Description description) {
+        PermissionPlan plan = methodPlans.get(description);
+        if (plan == null) {
+            plan = resolvePlan(description);
+            methodPlans.put(description, plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Sets the scenario in which the test is run by {@link PermissionScenarioRunner}, taking
+     * precedence over the declared plan of the test.
+     */
+    static void setScenarioPlan(Description description, PermissionPlan scenario) {
+        methodPlans.put(description, resolvePlan(description).with(scenario));
+    }
+
+    private static PermissionPlan resolvePlan(Description description) {
+        Class<?> testClass = description.getTestClass();
+        if (planIndex != null && testClass != null && description.getMethodName() != null) {
+            // Parameterized tests have the parameters appended to the method name
+            String methodName = description.getMethodName();
+            int parameters = methodName.indexOf('[');
+            PermissionPlan plan = planIndex.getPlan(testClass.getName(),
+                    parameters == -1 ? methodName : methodName.substring(0, parameters));
+            if (plan != null) {
+                return plan;
+            }
+        }
+
+        PermissionPlan classPlan = PermissionPlan.EMPTY;
+        if (testClass != null) {
+            classPlan = classPlans.get(testClass);
+            if (classPlan == null) {
+                classPlan = PermissionPlan.of(testClass.getAnnotation(RequiresPermissions.class),
+                        testClass.getAnnotation(RevokedPermissions.class));
+                classPlans.put(testClass, classPlan);
+            }
+        }
+        return classPlan.with(PermissionPlan.of(
+                description.getAnnotation(RequiresPermissions.class),
+                description.getAnnotation(RevokedPermissions.class)));
+    }
+
+    private static PlanIndex loadPlanIndex() {
+        try {
+            return (PlanIndex) Class.forName(GENERATED_PLANS).newInstance();
+        } catch (ClassNotFoundException e) {
+            Log.i(TAG, "loadPlanIndex: " + GENERATED_PLANS + " not generated, using annotations");
+        } catch (Exception e) {
+            Log.w(TAG, "loadPlanIndex: ", e);
+        }
+        return null;
+    }
+
+    /**
+     * Applies the plan, adding the scopes of the overrides it pushes to the list, even if it fails
+     * to grant the permissions, so that they can be popped when the test finishes.
+     */
+    private static synchronized void applyPlan(PermissionPlan plan,
+                                               List<PermissionOverrideStore.Scope> scopes)
+            throws Exception {
+        PermissionOverrideStore store = PermissionOverrideStore.getInstance();
+        for (Map.Entry<String, Boolean> entry : plan.revoked.entrySet()) {
+            scopes.add(store.push(entry.getKey(), PackageManager.PERMISSION_DENIED,
+                    entry.getValue()));
+        }
+
+        // Granting permissions which aren't granted, unless the checks are replayed
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || PermissionTraceRecorder.getInstance().isReplaying()
+                || plan.granted.isEmpty()) {
+            return;
+        }
+        Context context = InstrumentationRegistry.getTargetContext();
+        List<String> missing = new ArrayList<>();
+        for (String permission : plan.granted) {
+            if (!isGranted(context, permission)) {
+                missing.add(permission);
+            }
+        }
+        if (!missing.isEmpty()) {
+            String[] permissions = missing.toArray(new String[missing.size()]);
+            Log.i(TAG, "applyPlan: granting " + missing);
+            PermissionRule.grantPermissions(context.getPackageName(), permissions);
+            Assert.assertTrue("Unable to GRANT permissions " + missing,
+                    PermissionGrantWaiter.awaitGranted(context, permissions));
+            PermissionRule.invalidateRealPermissions(permissions);
+        }
+    }
+
+    /**
+     * Checks the real state of the permission, through the {@link RealPermissionCache} when it's
+     * enabled, which {@link PermissionRunListener} invalidates before every test.
+     */
+    private static boolean isGranted(Context context, String permission) {
+        RealPermissionCache cache = RealPermissionCache.getInstance();
+        if (!cache.isEnabled()) {
+            return context.checkSelfPermission(permission) == PackageManager.PERMISSION_GRANTED;
+        }
+        int slot = PermissionOverrideStore.getInstance().intern(permission);
+        int result = cache.get(slot, Process.myUid());
+        if (result == RealPermissionCache.UNKNOWN) {
+            long epoch = cache.getEpoch();
+            result = context.checkSelfPermission(permission);
+            cache.put(slot, Process.myUid(), result, epoch);
+        }
+        return result == PackageManager.PERMISSION_GRANTED;
+    }
+}
@@ -0,0 +1,23 @@
+package com.ahasbini.test.permission_utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the permissions which need to be granted for the tests of the class or for the test
+ * method, applied by {@link PermissionStateRule}.
+ */
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Inherited
+public @interface RequiresPermissions {
+
+    /**
+     * @return one or more of {@link android.Manifest.permission}
+     */
+    String[] value();
+}
@@ -0,0 +1,29 @@
+package com.ahasbini.test.permission_utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares the permissions which need to be seen as revoked by the app during the tests of the
+ * class or during the test method, applied by {@link PermissionStateRule}. A permission revoked by
+ * the method takes precedence over the same permission required by the class, and vice versa.
+ */
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.METHOD})
+@Inherited
+public @interface RevokedPermissions {
+
+    /**
+     * @return one or more of {@link android.Manifest.permission}
+     */
+    String[] value();
+
+    /**
+     * @return the result of <code>shouldShowRequestPermissionRationale()</code> for the permissions
+     */
+    boolean showRationale() default false;
+}
@@ -0,0 +1,40 @@
+package com.ahasbini.test.permission_utils;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.uiautomator.UiDevice;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A {@link ShellExecutor} for devices which don't allow writing to a shell started by the
+ * instrumentation (before Android S). Each call starts a shell through
+ * {@link UiDevice#executeShellCommand(String)}, which only returns stdout and splits the command on
+ * whitespaces instead of interpreting it, hence the commands are run through a {@link ShellScript}
+ * which captures their exit status and their stderr (through a file in {@link #TMP_DIRECTORY}),
+ * and allows running several commands in a single shell. There is no persistent session on these
+ * devices, batching the commands with {@link #executeAll(List)} is the only way of sparing shells.
+ */
+
+class UiDeviceShellExecutor implements ShellExecutor {
+
+    private static final String TMP_DIRECTORY = "/data/local/tmp";
+
+    @Override
+    public ShellResult execute(String command) throws IOException {
+        return executeAll(Collections.singletonList(command)).get(0);
+    }
+
+    @Override
+    public List<ShellResult> executeAll(List<String> commands) throws IOException {
+        String output = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation())
+                .executeShellCommand("sh -c " + ShellScript.build(commands, TMP_DIRECTORY));
+        return ShellScript.parse(commands, output);
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close, a shell is started per call
+    }
+}
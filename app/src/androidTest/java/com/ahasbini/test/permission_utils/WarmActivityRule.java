@@ -0,0 +1,219 @@
+package com.ahasbini.test.permission_utils;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A replacement of the <code>ActivityTestRule</code> for suites which only vary the state of the
+ * permissions (such as those run by {@link PermissionScenarioRunner}). The activity is launched by
+ * the first test and kept running for the following tests of the class, which get the change of
+ * the overrides pushed into it by {@link PermissionActivityTracker} through the
+ * {@link PermissionActivityTracker.RedeliveryHook} of the rule instead of launching it again,
+ * {@link PermissionActivityTracker#RECREATE} by default. It must be inside the rules setting the
+ * permissions, and the tests must leave the activity in a state the next ones can start from. The
+ * activity is launched again after a test fails, and finished after the class by the
+ * {@link #finishAfterClass()} class rule, so that it doesn't outlive the class into the following
+ * ones (or when the run finishes, if the class doesn't have the class rule).
+ * <p></p>
+ * The time spent launching and redelivering is exported by {@link PermissionRunListener}, along
+ * with the startup time saved by the reuses, estimated from the average launch time.
+ */
+
+public class WarmActivityRule<T extends CustomBuildBaseActivity> implements TestRule {
+
+    private static final String TAG = WarmActivityRule.class.getSimpleName();
+
+    private static final Map<Class<?>, CustomBuildBaseActivity> warmActivities = new HashMap<>();
+
+    private static int launches;
+    private static long launchMillis;
+    private static int reuses;
+    private static long redeliveryMillis;
+
+    private final Class<T> activityClass;
+    private final PermissionActivityTracker.RedeliveryHook hook;
+    private T activity;
+
+    public WarmActivityRule(Class<T> activityClass) {
+        this(activityClass, PermissionActivityTracker.RECREATE);
+    }
+
+    public WarmActivityRule(Class<T> activityClass,
+                            PermissionActivityTracker.RedeliveryHook hook) {
+        this.activityClass = activityClass;
+        this.hook = hook;
+    }
+
+    public T getActivity() {
+        return activity;
+    }
+
+    @Override
+    public Statement apply(final Statement base, Description description) {
+        return new Statement() {
+
+            @Override
+            public void evaluate() throws Throwable {
+                activity = acquireActivity();
+                try {
+                    base.evaluate();
+                } catch (Throwable t) {
+                    // The activity might be left in any state
+                    finish(activityClass);
+                    throw t;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return a class rule finishing the warm activities after the class
+     */
+    public static TestRule finishAfterClass() {
+        return new ExternalResource() {
+
+            @Override
+            protected void after() {
+                finishAll();
+            }
+        };
+    }
+
+    /**
+     * Finishes the warm activities, called after the classes and when the run finishes.
+     */
+    public static void finishAll() {
+        List<Class<?>> activityClasses;
+        synchronized (WarmActivityRule.class) {
+            activityClasses = new ArrayList<>(warmActivities.keySet());
+        }
+        for (Class<?> activityClass : activityClasses) {
+            finish(activityClass);
+        }
+    }
+
+    /**
+     * @return the launches and reuses of the activities, <code>null</code> if none were launched
+     */
+    public static synchronized JSONObject toJson() throws JSONException {
+        if (launches == 0) {
+            return null;
+        }
+        long saved = reuses * launchMillis / launches - redeliveryMillis;
+        return new JSONObject()
+                .put("launches", launches)
+                .put("launchMillis", launchMillis)
+                .put("reuses", reuses)
+                .put("redeliveryMillis", redeliveryMillis)
+                .put("estimatedSavedMillis", saved);
+    }
+
+    /**
+     * Resets the counters, called when the run finishes.
+     */
+    public static synchronized void reset() {
+        launches = 0;
+        launchMillis = 0;
+        reuses = 0;
+        redeliveryMillis = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T acquireActivity() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        CustomBuildBaseActivity warm;
+        synchronized (WarmActivityRule.class) {
+            warm = warmActivities.get(activityClass);
+        }
+        if (warm != null && PermissionActivityTracker.getInstance().isLive(warm)) {
+            long start = SystemClock.elapsedRealtime();
+            final int[] redelivered = new int[1];
+            instrumentation.runOnMainSync(new Runnable() {
+
+                @Override
+                public void run() {
+                    redelivered[0] = PermissionActivityTracker.getInstance().redeliver(hook);
+                }
+            });
+            instrumentation.waitForIdleSync();
+            if (hook == PermissionActivityTracker.RECREATE && redelivered[0] > 0) {
+                warm = findLiveActivity();
+            }
+            if (warm != null) {
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                Log.i(TAG, "acquireActivity: reusing " + activityClass.getSimpleName()
+                        + ", redelivered in " + elapsed + "ms");
+                synchronized (WarmActivityRule.class) {
+                    reuses++;
+                    redeliveryMillis += elapsed;
+                    warmActivities.put(activityClass, warm);
+                }
+                return (T) warm;
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        Intent intent = new Intent(Intent.ACTION_MAIN)
+                .setClassName(InstrumentationRegistry.getTargetContext(), activityClass.getName())
+                .addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        T launched = (T) instrumentation.startActivitySync(intent);
+        instrumentation.waitForIdleSync();
+        long elapsed = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, "acquireActivity: launched " + activityClass.getSimpleName() + " in "
+                + elapsed + "ms");
+        synchronized (WarmActivityRule.class) {
+            launches++;
+            launchMillis += elapsed;
+            warmActivities.put(activityClass, launched);
+        }
+        return launched;
+    }
+
+    /**
+     * @return the live instance of the activity class, the recreated one when recreating
+     */
+    private CustomBuildBaseActivity findLiveActivity() {
+        for (CustomBuildBaseActivity live : PermissionActivityTracker.getInstance()
+                .getLiveActivities()) {
+            if (live.getClass() == activityClass) {
+                return live;
+            }
+        }
+        return null;
+    }
+
+    private static void finish(Class<?> activityClass) {
+        final Activity activity;
+        synchronized (WarmActivityRule.class) {
+            activity = warmActivities.remove(activityClass);
+        }
+        if (activity == null) {
+            return;
+        }
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        instrumentation.runOnMainSync(new Runnable() {
+
+            @Override
+            public void run() {
+                activity.finish();
+            }
+        });
+        instrumentation.waitForIdleSync();
+    }
+}
@@ -2,15 +2,18 @@ package com.ahasbini.test.permission_utils;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
  * A modified {@link AppCompatActivity} which is extends by all other activities to allow for tests
- * to interface them and simulate certain scenarios such as Runtime Permissions.
+ * to interface them and simulate certain scenarios such as Runtime Permissions. Live activities are
+ * tracked by {@link PermissionActivityTracker} so that tests can reuse them across overrides.
  * <p></p>
  * Created by ahasbini on 07-Mar-18.
  */
@@ -20,24 +23,64 @@ public class CustomBuildBaseActivity extends AppCompatActivity {
 
     private static final String TAG = CustomBuildBaseActivity.class.getSimpleName();
 
-    public static HashMap<String, Integer> permissionOverrideMap = new HashMap<>();
-    public static HashMap<String, Boolean> shouldShowRequestPermissionRationaleMap = new HashMap<>();
+    /**
+     * Store of the default {@link PermissionSession}, activities bound to other sessions use the
+     * store of their session.
+     */
+    public static final PermissionOverrideStore permissionOverrideStore =
+            PermissionOverrideStore.getInstance();
+
+    private final PermissionLookup.RealRationales realRationales =
+            new PermissionLookup.RealRationales() {
+
+                @Override
+                public boolean shouldShowRequestPermissionRationale(String permission) {
+                    return CustomBuildBaseActivity.super
+                            .shouldShowRequestPermissionRationale(permission);
+                }
+            };
 
     @Override
     protected void attachBaseContext(Context newBase) {
         Log.i(TAG, "attachBaseContext: called");
-        super.attachBaseContext(new CustomBuildContext(newBase));
+        super.attachBaseContext(new CustomBuildContext(newBase, getClass().getName()));
+    }
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        // Binding the session before any checks in the activity (or its fragments) are done
+        getPermissionContext().setPermissionSession(PermissionSession.forIntent(getIntent()));
+        super.onCreate(savedInstanceState);
+        PermissionActivityTracker.getInstance().onCreated(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        PermissionActivityTracker.getInstance().onDestroyed(this);
+        super.onDestroy();
+    }
+
+    /**
+     * Called by {@link PermissionActivityTracker#CALLBACKS} when the tests change the overrides of
+     * the permissions while the activity is running, for the activity to re-run its logic depending
+     * on them. Does nothing by default.
+     *
+     * @param permissions the permissions whose overrides changed
+     */
+    protected void onPermissionOverridesChanged(@NonNull String[] permissions) {
+        Log.i(TAG, "onPermissionOverridesChanged: " + Arrays.toString(permissions));
     }
 
     @Override
     public boolean shouldShowRequestPermissionRationale(@NonNull String permission) {
-        Log.i(TAG, "shouldShowRequestPermissionRationaleMap: called");
-        if (shouldShowRequestPermissionRationaleMap.containsKey(permission)) {
-            Log.i(TAG, "shouldShowRequestPermissionRationaleMap: found permission: " + permission);
-            Log.i(TAG, "shouldShowRequestPermissionRationaleMap: result: " +
-                    shouldShowRequestPermissionRationaleMap.get(permission));
-            return shouldShowRequestPermissionRationaleMap.get(permission);
-        }
-        return super.shouldShowRequestPermissionRationale(permission);
+        return PermissionLookup.shouldShowRequestPermissionRationale(permission,
+                getPermissionContext().getPermissionSession(), realRationales);
+    }
+
+    /**
+     * @return the {@link CustomBuildContext} attached to the activity
+     */
+    public CustomBuildContext getPermissionContext() {
+        return (CustomBuildContext) getBaseContext();
     }
 }
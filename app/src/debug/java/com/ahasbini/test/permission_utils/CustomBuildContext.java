@@ -2,13 +2,21 @@ package com.ahasbini.test.permission_utils;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.os.Process;
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * A modified {@link ContextWrapper} which allows the tests to interface and simulate certain
  * scenarios such as Runtime Permissions. Used by {@link CustomBuildBaseActivity} to inject the
  * interface. In case the app is running in normal use (not running tests), the class will fallback
- * to the default implementations.
+ * to the default implementations. Checks go through {@link PermissionLookup}, which traces them in
+ * {@link PermissionTraceBuffer} rather than logging them as they might be called very often (such
+ * as when binding list items), and records or replays them through {@link PermissionTraceRecorder}
+ * when it's active. The checks of the call sites rewritten by the
+ * <code>com.ahasbini.permission-instrumentation</code> plugin go through the same path without the
+ * wrapper, see {@link PermissionCheckHooks}.
  * <p></p>
  * Created by ahasbini on 06-Mar-18.
  */
@@ -17,33 +25,69 @@ public class CustomBuildContext extends ContextWrapper {
 
     private static final String TAG = CustomBuildContext.class.getSimpleName();
 
+    private static final PermissionMetrics metrics = PermissionMetrics.getInstance();
+    private static final PermissionLookup.RealChecks<Context> realChecks =
+            new PermissionLookup.RealChecks<Context>() {
+
+                @Override
+                public int checkPermission(Context base, String permission, int pid, int uid) {
+                    return base.checkPermission(permission, pid, uid);
+                }
+            };
+
+    private final AtomicLong ownerChecks;
+    private volatile PermissionSession session = PermissionSession.getDefault();
+
     public CustomBuildContext(Context base) {
+        this(base, base.getClass().getName());
+    }
+
+    /**
+     * @param base  context to be wrapped
+     * @param owner name of the activity using the context, used to count its permission checks
+     */
+    public CustomBuildContext(Context base, String owner) {
         super(base);
+        ownerChecks = metrics.getOwnerCounter(owner);
         Log.i(TAG, "CustomBuildContext: base: " + base);
         Log.i(TAG, "CustomBuildContext: called");
     }
 
     @Override
     public int checkPermission(String permission, int pid, int uid) {
-        Log.i(TAG, "checkPermission: called");
-        if (CustomBuildBaseActivity.permissionOverrideMap.containsKey(permission)) {
-            Log.i(TAG, "checkPermission: found permission: " + permission);
-            Log.i(TAG, "checkPermission: result: " +
-                    CustomBuildBaseActivity.permissionOverrideMap.get(permission));
-            return CustomBuildBaseActivity.permissionOverrideMap.get(permission);
-        }
-        return super.checkPermission(permission, pid, uid);
+        return PermissionLookup.checkPermission(PermissionTrace.TYPE_CHECK_PERMISSION, permission,
+                pid, uid, session, ownerChecks, realChecks, getBaseContext());
     }
 
     @Override
     public int checkSelfPermission(String permission) {
-        Log.i(TAG, "checkSelfPermission: called");
-        if (CustomBuildBaseActivity.permissionOverrideMap.containsKey(permission)) {
-            Log.i(TAG, "checkSelfPermission: found permission: " + permission);
-            Log.i(TAG, "checkSelfPermission: result: " +
-                    CustomBuildBaseActivity.permissionOverrideMap.get(permission));
-            return CustomBuildBaseActivity.permissionOverrideMap.get(permission);
-        }
-        return super.checkSelfPermission(permission);
+        return PermissionLookup.checkPermission(PermissionTrace.TYPE_CHECK_SELF_PERMISSION,
+                permission, Process.myPid(), Process.myUid(), session, ownerChecks, realChecks,
+                getBaseContext());
+    }
+
+    /**
+     * Checks the permission against the overrides of the session, falling back to the real result
+     * of the base context. Shared with the call sites rewritten to {@link PermissionCheckHooks}.
+     *
+     * @param type        one of the check types of {@link PermissionTrace}
+     * @param ownerChecks counter of the checks of the activity doing the check
+     */
+    static int check(int type, String permission, int pid, int uid, Context base,
+                     PermissionSession session, AtomicLong ownerChecks) {
+        return PermissionLookup.checkPermission(type, permission, pid, uid, session, ownerChecks,
+                realChecks, base);
+    }
+
+    /**
+     * @return the session whose overrides are used by this context
+     */
+    public PermissionSession getPermissionSession() {
+        return session;
+    }
+
+    public void setPermissionSession(PermissionSession session) {
+        Log.i(TAG, "setPermissionSession: " + session);
+        this.session = session;
     }
 }
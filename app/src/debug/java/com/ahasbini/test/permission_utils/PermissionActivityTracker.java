@@ -0,0 +1,159 @@
+package com.ahasbini.test.permission_utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps track of the live {@link CustomBuildBaseActivity} instances along with the overrides they
+ * were last delivered, so that tests can push a change of the overrides into activities which are
+ * already running instead of launching them again. The change is delivered through a
+ * {@link RedeliveryHook}, either {@link #CALLBACKS} or {@link #RECREATE}, and only to the
+ * activities whose overrides changed since they were created or last delivered.
+ */
+
+public final class PermissionActivityTracker {
+
+    private static final String TAG = PermissionActivityTracker.class.getSimpleName();
+
+    private static final PermissionActivityTracker instance = new PermissionActivityTracker();
+
+    /**
+     * Delivers the change of the overrides to a running activity, called on the main thread.
+     */
+    public interface RedeliveryHook {
+
+        /**
+         * @param permissions the permissions whose overrides changed
+         */
+        void redeliver(CustomBuildBaseActivity activity, String[] permissions);
+    }
+
+    /**
+     * Re-runs the permission callbacks of the activity, for activities overriding
+     * {@link CustomBuildBaseActivity#onPermissionOverridesChanged(String[])}.
+     */
+    public static final RedeliveryHook CALLBACKS = new RedeliveryHook() {
+
+        @Override
+        public void redeliver(CustomBuildBaseActivity activity, String[] permissions) {
+            activity.onPermissionOverridesChanged(permissions);
+        }
+    };
+
+    /**
+     * Recreates the activity, for activities which only check the permissions while being created.
+     */
+    public static final RedeliveryHook RECREATE = new RedeliveryHook() {
+
+        @Override
+        public void redeliver(CustomBuildBaseActivity activity, String[] permissions) {
+            activity.recreate();
+        }
+    };
+
+    private final PermissionOverrideStore overrideStore = PermissionOverrideStore.getInstance();
+    private final Map<CustomBuildBaseActivity, int[]> deliveredOverrides = new WeakHashMap<>();
+
+    private PermissionActivityTracker() {
+    }
+
+    public static PermissionActivityTracker getInstance() {
+        return instance;
+    }
+
+    synchronized void onCreated(CustomBuildBaseActivity activity) {
+        deliveredOverrides.put(activity, getOverrides(activity));
+    }
+
+    synchronized void onDestroyed(CustomBuildBaseActivity activity) {
+        deliveredOverrides.remove(activity);
+    }
+
+    /**
+     * @return <code>true</code> if the activity is created and not finishing
+     */
+    public synchronized boolean isLive(CustomBuildBaseActivity activity) {
+        return deliveredOverrides.containsKey(activity) && !activity.isFinishing();
+    }
+
+    public synchronized List<CustomBuildBaseActivity> getLiveActivities() {
+        List<CustomBuildBaseActivity> activities = new ArrayList<>();
+        for (CustomBuildBaseActivity activity : deliveredOverrides.keySet()) {
+            if (!activity.isFinishing()) {
+                activities.add(activity);
+            }
+        }
+        return activities;
+    }
+
+    /**
+     * Delivers the overrides changed since the last delivery to the live activities, must be called
+     * on the main thread.
+     *
+     * @return the number of activities the change was delivered to
+     */
+    public int redeliver(RedeliveryHook hook) {
+        List<CustomBuildBaseActivity> changedActivities = new ArrayList<>();
+        List<String[]> changedPermissions = new ArrayList<>();
+        synchronized (this) {
+            for (Map.Entry<CustomBuildBaseActivity, int[]> entry : deliveredOverrides.entrySet()) {
+                CustomBuildBaseActivity activity = entry.getKey();
+                if (activity.isFinishing()) {
+                    continue;
+                }
+                int[] overrides = getOverrides(activity);
+                String[] changed = getChanged(entry.getValue(), overrides);
+                if (changed.length > 0) {
+                    entry.setValue(overrides);
+                    changedActivities.add(activity);
+                    changedPermissions.add(changed);
+                }
+            }
+        }
+        // Out of the lock as recreating the activities destroys and creates them
+        for (int i = 0; i < changedActivities.size(); i++) {
+            Log.i(TAG, "redeliver: " + changedActivities.get(i).getClass().getSimpleName());
+            hook.redeliver(changedActivities.get(i), changedPermissions.get(i));
+        }
+        return changedActivities.size();
+    }
+
+    /**
+     * @return the result and rationale overrides of every interned permission, as seen by the
+     * session of the activity
+     */
+    private int[] getOverrides(CustomBuildBaseActivity activity) {
+        PermissionSession session = activity.getPermissionContext().getPermissionSession();
+        int size = overrideStore.size();
+        int[] overrides = new int[size * 2];
+        for (int slot = 0; slot < size; slot++) {
+            if (session.isDefault()) {
+                overrides[slot * 2] = overrideStore.getPermissionResultAt(slot);
+                overrides[slot * 2 + 1] = overrideStore.getShouldShowRationaleAt(slot);
+            } else {
+                String permission = overrideStore.nameOf(slot);
+                overrides[slot * 2] = session.getStore().getPermissionResult(permission);
+                overrides[slot * 2 + 1] = session.getStore().getShouldShowRationale(permission);
+            }
+        }
+        return overrides;
+    }
+
+    private String[] getChanged(int[] delivered, int[] overrides) {
+        List<String> changed = new ArrayList<>();
+        for (int i = 0; i < overrides.length; i += 2) {
+            // Permissions interned since the last delivery were not overridden then
+            int result = i < delivered.length ? delivered[i] : PermissionOverrideStore.NO_OVERRIDE;
+            int rationale = i < delivered.length ? delivered[i + 1]
+                    : PermissionOverrideStore.RATIONALE_UNSET;
+            if (result != overrides[i] || rationale != overrides[i + 1]) {
+                changed.add(overrideStore.nameOf(i / 2));
+            }
+        }
+        return changed.toArray(new String[changed.size()]);
+    }
+}
@@ -0,0 +1,75 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Process;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The permission checks which the <code>com.ahasbini.permission-instrumentation</code> plugin
+ * rewrites the call sites of <code>ContextCompat.checkSelfPermission()</code>,
+ * <code>ActivityCompat.checkSelfPermission()</code> and <code>Context.checkSelfPermission()</code>
+ * to, in the app and library classes of the debug build. The checks go straight to
+ * {@link PermissionOverrideStore} through the same path as {@link CustomBuildContext}, hence the
+ * activities (such as those of the libraries) don't need to extend {@link CustomBuildBaseActivity}
+ * and have every call to their context wrapped for their checks to be overridden. The checks of
+ * those which do still go through their {@link CustomBuildContext}, bound to their session.
+ */
+
+public final class PermissionCheckHooks {
+
+    private static final PermissionMetrics metrics = PermissionMetrics.getInstance();
+
+    /**
+     * The counter of the class which checked last, as the checks mostly come from the same class
+     * in a row, sparing the lookup of its counter by name.
+     */
+    private static volatile OwnerCounter lastOwner;
+
+    private PermissionCheckHooks() {
+    }
+
+    /**
+     * Replaces <code>ContextCompat.checkSelfPermission(context, permission)</code>, and
+     * <code>context.checkSelfPermission(permission)</code>.
+     */
+    public static int checkSelfPermission(Context context, String permission) {
+        if (permission == null) {
+            throw new IllegalArgumentException("permission is null");
+        }
+
+        // Activities extending CustomBuildBaseActivity check through their context, bound to their
+        // session, others are checked against the default session
+        Context current = context;
+        while (current instanceof ContextWrapper) {
+            if (current instanceof CustomBuildContext) {
+                return current.checkSelfPermission(permission);
+            }
+            current = ((ContextWrapper) current).getBaseContext();
+        }
+        return CustomBuildContext.check(PermissionTrace.TYPE_CHECK_SELF_PERMISSION, permission,
+                Process.myPid(), Process.myUid(), context, PermissionSession.getDefault(),
+                getOwnerCounter(context.getClass()));
+    }
+
+    private static AtomicLong getOwnerCounter(Class<?> owner) {
+        OwnerCounter last = lastOwner;
+        if (last == null || last.owner != owner) {
+            last = new OwnerCounter(owner, metrics.getOwnerCounter(owner.getName()));
+            lastOwner = last;
+        }
+        return last.counter;
+    }
+
+    private static final class OwnerCounter {
+
+        final Class<?> owner;
+        final AtomicLong counter;
+
+        OwnerCounter(Class<?> owner, AtomicLong counter) {
+            this.owner = owner;
+            this.counter = counter;
+        }
+    }
+}
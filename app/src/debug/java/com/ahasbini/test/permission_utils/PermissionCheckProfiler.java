@@ -0,0 +1,223 @@
+package com.ahasbini.test.permission_utils;
+
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An opt-in profiler of the permission checks done on the main thread through
+ * {@link CustomBuildContext}. It samples the call stacks of the checks and folds them (keeping only
+ * the app frames) into a histogram of call sites, flagging the sites exceeding a number of checks
+ * within a single frame or a single second. Disabled by default as capturing stacks is expensive.
+ */
+
+public final class PermissionCheckProfiler {
+
+    private static final int MAX_APP_FRAMES = 4;
+    private static final String[] IGNORED_PREFIXES = {
+            "java.", "javax.", "dalvik.", "android.", "com.android.", "libcore.",
+            PermissionCheckProfiler.class.getPackage().getName() + ".CustomBuild",
+            // By name, as PermissionCheckHooks depends on the Android runtime
+            PermissionCheckProfiler.class.getPackage().getName() + ".PermissionCheckHooks",
+            PermissionCheckProfiler.class.getName(), PermissionLookup.class.getName()
+    };
+
+    private static final PermissionCheckProfiler instance = new PermissionCheckProfiler();
+
+    private volatile boolean enabled;
+    private volatile int sampleInterval = 1;
+    private volatile int maxChecksPerFrame = 2;
+    private volatile int maxChecksPerSecond = 30;
+
+    private final Map<String, CallSite> callSites = new HashMap<>();
+    private long checks;
+    private long frame;
+    private boolean frameCallbackPosted;
+    private FrameCounter frameCounter;
+
+    public static PermissionCheckProfiler getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param sampleInterval captures the stack of one out of every <code>sampleInterval</code> checks
+     */
+    public void setSampleInterval(int sampleInterval) {
+        this.sampleInterval = Math.max(1, sampleInterval);
+    }
+
+    /**
+     * Sets the thresholds above which a call site is flagged as hot. Counts are of sampled checks.
+     */
+    public void setThresholds(int maxChecksPerFrame, int maxChecksPerSecond) {
+        this.maxChecksPerFrame = maxChecksPerFrame;
+        this.maxChecksPerSecond = maxChecksPerSecond;
+    }
+
+    /**
+     * Called by {@link CustomBuildContext} on every check while enabled. Checks from threads other
+     * than the main thread are ignored.
+     *
+     * @param slot slot of the permission in {@link PermissionOverrideStore}
+     */
+    void onCheck(int slot) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return;
+        }
+        synchronized (this) {
+            if (checks++ % sampleInterval != 0) {
+                return;
+            }
+            postFrameCallback();
+            String site = foldStack(new Throwable().getStackTrace(), slot);
+            CallSite callSite = callSites.get(site);
+            if (callSite == null) {
+                callSite = new CallSite(site);
+                callSites.put(site, callSite);
+            }
+            callSite.record(frame, SystemClock.uptimeMillis() / 1000);
+        }
+    }
+
+    public synchronized void reset() {
+        callSites.clear();
+        checks = 0;
+    }
+
+    /**
+     * @return the call sites sorted by count as <code>[{"site": "frames;permission", "count": n,
+     * "maxPerFrame": n, "maxPerSecond": n, "hot": bool}]</code>
+     * @throws JSONException due to invalid values
+     */
+    public synchronized JSONArray toJson() throws JSONException {
+        List<CallSite> sorted = new ArrayList<>(callSites.values());
+        Collections.sort(sorted, new Comparator<CallSite>() {
+
+            @Override
+            public int compare(CallSite o1, CallSite o2) {
+                return o1.count < o2.count ? 1 : o1.count == o2.count ? 0 : -1;
+            }
+        });
+        JSONArray report = new JSONArray();
+        for (CallSite callSite : sorted) {
+            report.put(new JSONObject()
+                    .put("site", callSite.site)
+                    .put("count", callSite.count)
+                    .put("maxPerFrame", callSite.maxPerFrame)
+                    .put("maxPerSecond", callSite.maxPerSecond)
+                    .put("hot", callSite.maxPerFrame > maxChecksPerFrame
+                            || callSite.maxPerSecond > maxChecksPerSecond));
+        }
+        return report;
+    }
+
+    /**
+     * Folds the stack into <code>outer;...;inner;permission</code> using the innermost app frames.
+     */
+    static String foldStack(StackTraceElement[] stack, int slot) {
+        List<String> frames = new ArrayList<>(MAX_APP_FRAMES);
+        for (StackTraceElement element : stack) {
+            if (!isIgnored(element.getClassName())) {
+                frames.add(element.getClassName() + "." + element.getMethodName() + ":"
+                        + element.getLineNumber());
+                if (frames.size() == MAX_APP_FRAMES) {
+                    break;
+                }
+            }
+        }
+        StringBuilder folded = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            folded.append(frames.get(i)).append(';');
+        }
+        return folded.append(PermissionOverrideStore.getInstance().nameOf(slot)).toString();
+    }
+
+    private static boolean isIgnored(String className) {
+        for (String prefix : IGNORED_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Ends the frame of the checks at the next frame, called on the main thread only. The callback
+     * isn't posted again until the next check, so that the profiler doesn't keep scheduling frames
+     * while the UI is idle.
+     */
+    private void postFrameCallback() {
+        if (frameCallbackPosted) {
+            return;
+        }
+        frameCallbackPosted = true;
+        if (frameCounter == null) {
+            frameCounter = new FrameCounter();
+        }
+        frameCounter.post();
+    }
+
+    /**
+     * Counts the end of the frame, loaded only once profiling so that the profiler doesn't depend
+     * on the Android runtime while disabled.
+     */
+    private class FrameCounter implements Choreographer.FrameCallback {
+
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (PermissionCheckProfiler.this) {
+                frame++;
+                frameCallbackPosted = false;
+            }
+        }
+    }
+
+    private static class CallSite {
+
+        final String site;
+        long count;
+        long lastFrame = -1;
+        int checksInFrame;
+        int maxPerFrame;
+        long lastSecond = -1;
+        int checksInSecond;
+        int maxPerSecond;
+
+        CallSite(String site) {
+            this.site = site;
+        }
+
+        void record(long frame, long second) {
+            count++;
+            checksInFrame = frame == lastFrame ? checksInFrame + 1 : 1;
+            lastFrame = frame;
+            maxPerFrame = Math.max(maxPerFrame, checksInFrame);
+            checksInSecond = second == lastSecond ? checksInSecond + 1 : 1;
+            lastSecond = second;
+            maxPerSecond = Math.max(maxPerSecond, checksInSecond);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The lookup of the permission checks and rationale queries done through
+ * {@link CustomBuildContext}, {@link CustomBuildBaseActivity} and {@link PermissionCheckHooks}. The
+ * results are taken from the trace being replayed by {@link PermissionTraceRecorder}, then from the
+ * overrides of the {@link PermissionSession}, falling back to the real results given by the caller,
+ * while being counted, profiled, traced and recorded. It doesn't depend on the Android runtime,
+ * hence it's also the path measured by <code>PermissionLookupBenchmark</code> on the host JVM.
+ */
+
+final class PermissionLookup {
+
+    /**
+     * Gets the real result of a check, usually from the base context (hence the Android System).
+     * Stateless, so that a single instance is shared by the checks instead of one being allocated
+     * per check.
+     *
+     * @param <T> type of what the checks are done on, such as the base context
+     */
+    interface RealChecks<T> {
+
+        int checkPermission(T base, String permission, int pid, int uid);
+    }
+
+    /**
+     * Gets the real result of a rationale query, usually from the activity.
+     */
+    interface RealRationales {
+
+        boolean shouldShowRequestPermissionRationale(String permission);
+    }
+
+    private static final PermissionTraceBuffer traceBuffer = PermissionTraceBuffer.getInstance();
+    private static final PermissionMetrics metrics = PermissionMetrics.getInstance();
+    private static final PermissionCheckProfiler profiler = PermissionCheckProfiler.getInstance();
+    private static final RealPermissionCache realCache = RealPermissionCache.getInstance();
+    private static final PermissionOverrideStore overrideStore =
+            PermissionOverrideStore.getInstance();
+    private static final PermissionTraceRecorder traceRecorder =
+            PermissionTraceRecorder.getInstance();
+
+    private PermissionLookup() {
+    }
+
+    /**
+     * Checks the permission against the overrides of the session, falling back to the real result.
+     *
+     * @param type        one of the check types of {@link PermissionTrace}
+     * @param ownerChecks counter of the checks of the activity doing the check
+     * @param base        what the real checks are done on
+     */
+    static <T> int checkPermission(int type, String permission, int pid, int uid,
+                                   PermissionSession session, AtomicLong ownerChecks,
+                                   RealChecks<T> real, T base) {
+        int slot = overrideStore.intern(permission);
+        int result = replay(type, slot);
+        if (result != PermissionTraceRecorder.NOT_RECORDED) {
+            ownerChecks.incrementAndGet();
+            metrics.recordCheck(slot, true);
+            return result;
+        }
+        result = session.isDefault()
+                ? overrideStore.getPermissionResultAt(slot)
+                : session.getStore().getPermissionResult(permission);
+        ownerChecks.incrementAndGet();
+        if (profiler.isEnabled()) {
+            profiler.onCheck(slot);
+        }
+        if (result != PermissionOverrideStore.NO_OVERRIDE) {
+            metrics.recordCheck(slot, true);
+            traceBuffer.record(slot, result, type, true);
+            traceRecorder.record(type, slot, result);
+            return result;
+        }
+        result = checkRealPermission(permission, slot, pid, uid, real, base);
+        metrics.recordCheck(slot, false);
+        traceBuffer.record(slot, result, type, false);
+        traceRecorder.record(type, slot, result);
+        return result;
+    }
+
+    /**
+     * Answers the query with the rationale override of the session, falling back to the real one.
+     */
+    static boolean shouldShowRequestPermissionRationale(String permission,
+                                                        PermissionSession session,
+                                                        RealRationales real) {
+        int slot = overrideStore.intern(permission);
+        int rationale = replay(PermissionTrace.TYPE_SHOULD_SHOW_RATIONALE, slot);
+        if (rationale != PermissionTraceRecorder.NOT_RECORDED) {
+            return rationale == PermissionOverrideStore.RATIONALE_SHOW;
+        }
+        rationale = session.isDefault()
+                ? overrideStore.getShouldShowRationaleAt(slot)
+                : session.getStore().getShouldShowRationale(permission);
+        if (rationale != PermissionOverrideStore.RATIONALE_UNSET) {
+            traceBuffer.record(slot, rationale, PermissionTrace.TYPE_SHOULD_SHOW_RATIONALE, true);
+            traceRecorder.record(PermissionTrace.TYPE_SHOULD_SHOW_RATIONALE, slot, rationale);
+            return rationale == PermissionOverrideStore.RATIONALE_SHOW;
+        }
+        boolean result = real.shouldShowRequestPermissionRationale(permission);
+        traceBuffer.record(slot, result ? 1 : 0, PermissionTrace.TYPE_SHOULD_SHOW_RATIONALE, false);
+        traceRecorder.record(PermissionTrace.TYPE_SHOULD_SHOW_RATIONALE, slot, result ? 1 : 0);
+        return result;
+    }
+
+    /**
+     * Answers the check or query with the result recorded in the trace being replayed, if any.
+     *
+     * @return the recorded result or {@link PermissionTraceRecorder#NOT_RECORDED}
+     */
+    private static int replay(int type, int slot) {
+        if (!traceRecorder.isReplaying()) {
+            return PermissionTraceRecorder.NOT_RECORDED;
+        }
+        int result = traceRecorder.replay(type, slot);
+        if (result != PermissionTraceRecorder.NOT_RECORDED) {
+            traceBuffer.record(slot, result, type, true);
+            traceRecorder.record(type, slot, result);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the real result, going through {@link RealPermissionCache} if it's enabled.
+     */
+    private static <T> int checkRealPermission(String permission, int slot, int pid, int uid,
+                                               RealChecks<T> real, T base) {
+        if (!realCache.isEnabled()) {
+            return real.checkPermission(base, permission, pid, uid);
+        }
+        int result = realCache.get(slot, uid);
+        if (result == RealPermissionCache.UNKNOWN) {
+            long epoch = realCache.getEpoch();
+            result = real.checkPermission(base, permission, pid, uid);
+            realCache.put(slot, uid, result, epoch);
+        }
+        return result;
+    }
+}
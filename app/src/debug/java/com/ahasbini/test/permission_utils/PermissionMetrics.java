@@ -0,0 +1,150 @@
+package com.ahasbini.test.permission_utils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the permission checks handled by {@link CustomBuildContext}, per permission, per
+ * calling activity and per overridden or real result. Counting is a single atomic increment on a
+ * preallocated array (indexed by the {@link PermissionOverrideStore} slot) or on a counter owned by
+ * the context, hence cheap enough to be left on during full test runs.
+ * <p></p>
+ * The arrays are chunks of {@link #CHUNK_SIZE} slots, which are never copied. The table of chunks
+ * is copied to grow when a permission is interned past its end, hence no checks are dropped from
+ * the counts, including those counted while the table grows.
+ */
+
+public final class PermissionMetrics {
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int INITIAL_CHUNKS = 4;
+
+    private static final PermissionMetrics instance = new PermissionMetrics();
+
+    /**
+     * Chunks of the counters, the overridden checks of a slot followed by its real checks.
+     */
+    private volatile AtomicLongArray[] chunks = grow(new AtomicLongArray[0], INITIAL_CHUNKS);
+    private final ConcurrentHashMap<String, AtomicLong> ownerChecks = new ConcurrentHashMap<>();
+
+    public static PermissionMetrics getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param owner name of the activity checking the permissions
+     * @return the counter of the checks done by the owner, to be incremented by the caller
+     */
+    public AtomicLong getOwnerCounter(String owner) {
+        AtomicLong counter = ownerChecks.get(owner);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = ownerChecks.putIfAbsent(owner, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * @param slot       slot of the permission in {@link PermissionOverrideStore}
+     * @param overridden <code>true</code> if the result came from {@link PermissionOverrideStore}
+     */
+    public void recordCheck(int slot, boolean overridden) {
+        if (slot < 0) {
+            return;
+        }
+        AtomicLongArray[] current = chunks;
+        int chunk = slot >>> CHUNK_BITS;
+        if (chunk >= current.length) {
+            current = growChunks(chunk + 1);
+        }
+        current[chunk].incrementAndGet(indexOf(slot) + (overridden ? 0 : 1));
+    }
+
+    /**
+     * Resets all the counters, counters returned by {@link #getOwnerCounter(String)} remain valid.
+     */
+    public void reset() {
+        for (AtomicLongArray chunk : chunks) {
+            for (int i = 0; i < chunk.length(); i++) {
+                chunk.set(i, 0);
+            }
+        }
+        for (AtomicLong counter : ownerChecks.values()) {
+            counter.set(0);
+        }
+    }
+
+    /**
+     * @return the counters as <code>{"total": n, "permissions": {"name": {"overridden": n,
+     * "real": n}}, "activities": {"name": n}}</code>, skipping zero counters
+     * @throws JSONException due to invalid values
+     */
+    public JSONObject toJson() throws JSONException {
+        PermissionOverrideStore store = PermissionOverrideStore.getInstance();
+        long total = 0;
+        JSONObject permissions = new JSONObject();
+        AtomicLongArray[] current = chunks;
+        int slots = Math.min(store.size(), current.length * CHUNK_SIZE);
+        for (int slot = 0; slot < slots; slot++) {
+            AtomicLongArray chunk = current[slot >>> CHUNK_BITS];
+            long overridden = chunk.get(indexOf(slot));
+            long real = chunk.get(indexOf(slot) + 1);
+            if (overridden + real == 0) {
+                continue;
+            }
+            total += overridden + real;
+            permissions.put(store.nameOf(slot), new JSONObject()
+                    .put("overridden", overridden)
+                    .put("real", real));
+        }
+
+        JSONObject activities = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : ownerChecks.entrySet()) {
+            if (entry.getValue().get() > 0) {
+                activities.put(entry.getKey(), entry.getValue().get());
+            }
+        }
+
+        return new JSONObject()
+                .put("total", total)
+                .put("permissions", permissions)
+                .put("activities", activities);
+    }
+
+    /**
+     * @return the chunks, grown to hold at least the number of chunks
+     */
+    private synchronized AtomicLongArray[] growChunks(int minChunks) {
+        AtomicLongArray[] current = chunks;
+        if (current.length < minChunks) {
+            current = grow(current, Math.max(minChunks, current.length * 2));
+            chunks = current;
+        }
+        return current;
+    }
+
+    private static AtomicLongArray[] grow(AtomicLongArray[] chunks, int newLength) {
+        AtomicLongArray[] grown = Arrays.copyOf(chunks, newLength);
+        for (int i = chunks.length; i < newLength; i++) {
+            grown[i] = new AtomicLongArray(CHUNK_SIZE * 2);
+        }
+        return grown;
+    }
+
+    /**
+     * @return the index of the overridden checks of the slot in its chunk
+     */
+    private static int indexOf(int slot) {
+        return (slot & (CHUNK_SIZE - 1)) << 1;
+    }
+}
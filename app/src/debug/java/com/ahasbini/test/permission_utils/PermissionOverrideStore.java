@@ -0,0 +1,455 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the overridden results of permission checks and rationale queries which are set by the
+ * tests and read by {@link CustomBuildContext} and {@link CustomBuildBaseActivity}. Permission
+ * strings are interned into int slots that never change for the lifetime of the process, and every
+ * write publishes a new immutable snapshot so that reads (usually on the main thread) are lock-free
+ * and don't allocate or box, while writes from any thread are retried until they are published.
+ * <p></p>
+ * Tests can push overrides in a {@link Scope} on top of the ones already set, each permission having
+ * a persistent (structurally shared) stack of scopes. Pushing and reading are O(1), and popping a
+ * scope is O(depth) while restoring exactly the overrides of the outer scopes, even when the scopes
+ * are popped out of order.
+ */
+
+public final class PermissionOverrideStore {
+
+    /**
+     * Returned by {@link #getPermissionResult(String)} when the permission isn't overridden.
+     */
+    public static final int NO_OVERRIDE = Integer.MIN_VALUE;
+
+    /**
+     * Returned by {@link #slotOf(String)} when the permission hasn't been interned yet.
+     */
+    public static final int NO_SLOT = -1;
+
+    public static final int RATIONALE_UNSET = -1;
+    public static final int RATIONALE_HIDE = 0;
+    public static final int RATIONALE_SHOW = 1;
+
+    private static final PermissionOverrideStore instance = new PermissionOverrideStore();
+
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(Snapshot.EMPTY);
+    private final AtomicLong scopeIds = new AtomicLong();
+
+    public PermissionOverrideStore() {
+    }
+
+    /**
+     * @return the store of the default {@link PermissionSession}, which also interns the slots used
+     * by {@link PermissionTraceBuffer}, {@link PermissionMetrics} and {@link RealPermissionCache}
+     */
+    public static PermissionOverrideStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * Looks up the slot of the permission without interning it.
+     *
+     * @param permission one of {@link android.Manifest.permission}
+     * @return the slot of the permission or {@link #NO_SLOT} if it was never interned
+     */
+    public int slotOf(String permission) {
+        return snapshot.get().slotOf(permission);
+    }
+
+    /**
+     * Interns the permission, assigning it a slot if it doesn't have one already.
+     *
+     * @param permission one of {@link android.Manifest.permission}
+     * @return the slot of the permission
+     */
+    public int intern(String permission) {
+        if (permission == null) {
+            throw new IllegalArgumentException("permission is null");
+        }
+        while (true) {
+            Snapshot current = snapshot.get();
+            int slot = current.slotOf(permission);
+            if (slot != NO_SLOT) {
+                return slot;
+            }
+            Snapshot next = current.withSlot(permission);
+            if (snapshot.compareAndSet(current, next)) {
+                return next.size - 1;
+            }
+        }
+    }
+
+    /**
+     * @param slot a slot returned by {@link #intern(String)}
+     * @return the permission interned in the slot or <code>null</code> if the slot is unknown
+     */
+    public String nameOf(int slot) {
+        Snapshot current = snapshot.get();
+        return slot >= 0 && slot < current.size ? current.names[slot] : null;
+    }
+
+    /**
+     * @return the number of interned permissions, slots are always lower than this value
+     */
+    public int size() {
+        return snapshot.get().size;
+    }
+
+    /**
+     * @param permission one of {@link android.Manifest.permission}
+     * @return the overridden result or {@link #NO_OVERRIDE}
+     */
+    public int getPermissionResult(String permission) {
+        Snapshot current = snapshot.get();
+        int slot = current.slotOf(permission);
+        return slot == NO_SLOT ? NO_OVERRIDE : current.results[slot];
+    }
+
+    /**
+     * @param permission one of {@link android.Manifest.permission}
+     * @return one of {@link #RATIONALE_UNSET}, {@link #RATIONALE_HIDE} or {@link #RATIONALE_SHOW}
+     */
+    public int getShouldShowRationale(String permission) {
+        Snapshot current = snapshot.get();
+        int slot = current.slotOf(permission);
+        return slot == NO_SLOT ? RATIONALE_UNSET : current.rationales[slot];
+    }
+
+    /**
+     * Same as {@link #getPermissionResult(String)} for an interned slot, saving the lookup.
+     */
+    public int getPermissionResultAt(int slot) {
+        Snapshot current = snapshot.get();
+        return slot >= 0 && slot < current.size ? current.results[slot] : NO_OVERRIDE;
+    }
+
+    /**
+     * Same as {@link #getShouldShowRationale(String)} for an interned slot, saving the lookup.
+     */
+    public int getShouldShowRationaleAt(int slot) {
+        Snapshot current = snapshot.get();
+        return slot >= 0 && slot < current.size ? current.rationales[slot] : RATIONALE_UNSET;
+    }
+
+    /**
+     * Sets the overridden result of the permission in its innermost scope, or outside of the scopes
+     * if none is pushed.
+     */
+    public void setPermissionResult(String permission, int result) {
+        update(permission, result, false, 0, true);
+    }
+
+    /**
+     * Sets the overridden rationale of the permission in its innermost scope, or outside of the
+     * scopes if none is pushed.
+     */
+    public void setShouldShowRationale(String permission, boolean show) {
+        update(permission, 0, true, show ? RATIONALE_SHOW : RATIONALE_HIDE, false);
+    }
+
+    /**
+     * Sets both overrides of the permission in a single snapshot.
+     */
+    public void setOverride(String permission, int result, boolean showRationale) {
+        update(permission, result, true, showRationale ? RATIONALE_SHOW : RATIONALE_HIDE, true);
+    }
+
+    /**
+     * Removes both overrides of the permission set outside of the scopes, the slot remains interned
+     * and the pushed scopes remain in place.
+     */
+    public void clear(String permission) {
+        int slot = intern(permission);
+        while (true) {
+            Snapshot current = snapshot.get();
+            Snapshot next = current.with(slot, NO_OVERRIDE, (byte) RATIONALE_UNSET,
+                    current.overlays[slot]);
+            if (snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the overrides and the scopes of all permissions, the slots remain interned.
+     */
+    public void clearAll() {
+        while (true) {
+            Snapshot current = snapshot.get();
+            if (snapshot.compareAndSet(current, current.cleared())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Pushes a scope with both overrides of the permission on top of its current overrides.
+     *
+     * @return the scope to be passed to {@link #pop(Scope)}, usually in a <code>finally</code> block
+     */
+    public Scope push(String permission, int result, boolean showRationale) {
+        int slot = intern(permission);
+        Scope scope = new Scope(scopeIds.incrementAndGet(), slot);
+        byte rationale = (byte) (showRationale ? RATIONALE_SHOW : RATIONALE_HIDE);
+        while (true) {
+            Snapshot current = snapshot.get();
+            Overlay overlay = new Overlay(scope.id, result, rationale, current.overlays[slot]);
+            Snapshot next = current.with(slot, current.baseResults[slot],
+                    current.baseRationales[slot], overlay);
+            if (snapshot.compareAndSet(current, next)) {
+                return scope;
+            }
+        }
+    }
+
+    /**
+     * Pops the scope, restoring the overrides of the outer scopes (or the ones set outside of the
+     * scopes). Popping a scope which is already popped does nothing.
+     */
+    public void pop(Scope scope) {
+        while (true) {
+            Snapshot current = snapshot.get();
+            Overlay top = current.overlays[scope.slot];
+            Overlay remaining = Overlay.remove(top, scope.id);
+            if (remaining == top) {
+                return;
+            }
+            Snapshot next = current.with(scope.slot, current.baseResults[scope.slot],
+                    current.baseRationales[scope.slot], remaining);
+            if (snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of scopes pushed for the permission
+     */
+    public int getScopeDepth(String permission) {
+        Snapshot current = snapshot.get();
+        int slot = current.slotOf(permission);
+        int depth = 0;
+        for (Overlay overlay = slot == NO_SLOT ? null : current.overlays[slot]; overlay != null;
+             overlay = overlay.next) {
+            depth++;
+        }
+        return depth;
+    }
+
+    private void update(String permission, int result, boolean setRationale, int rationale,
+                        boolean setResult) {
+        int slot = intern(permission);
+        while (true) {
+            Snapshot current = snapshot.get();
+            Overlay top = current.overlays[slot];
+            Snapshot next;
+            if (top == null) {
+                next = current.with(slot,
+                        setResult ? result : current.baseResults[slot],
+                        setRationale ? (byte) rationale : current.baseRationales[slot], null);
+            } else {
+                // Replacing the innermost scope while keeping its id to be popped later
+                next = current.with(slot, current.baseResults[slot], current.baseRationales[slot],
+                        new Overlay(top.id,
+                                setResult ? result : top.result,
+                                setRationale ? (byte) rationale : top.rationale,
+                                top.next));
+            }
+            if (snapshot.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A handle of the overrides pushed by {@link #push(String, int, boolean)}.
+     */
+    public static final class Scope {
+
+        final long id;
+        final int slot;
+
+        Scope(long id, int slot) {
+            this.id = id;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * An immutable node of the stack of scopes of a permission, shared between snapshots.
+     */
+    private static final class Overlay {
+
+        final long id;
+        final int result;
+        final byte rationale;
+        final Overlay next;
+
+        Overlay(long id, int result, byte rationale, Overlay next) {
+            this.id = id;
+            this.result = result;
+            this.rationale = rationale;
+            this.next = next;
+        }
+
+        /**
+         * @return the stack without the node of the id, copying only the nodes above it, or the
+         * same stack if the id isn't found
+         */
+        static Overlay remove(Overlay top, long id) {
+            if (top == null) {
+                return null;
+            }
+            if (top.id == id) {
+                return top.next;
+            }
+            Overlay rest = remove(top.next, id);
+            return rest == top.next ? top : new Overlay(top.id, top.result, top.rationale, rest);
+        }
+    }
+
+    /**
+     * Immutable state of the store. Slots are indexes into {@link #names} and the per slot arrays,
+     * while {@link #index} is an open addressing table of <code>slot + 1</code> values (0 being an
+     * empty bucket) kept at most half full. {@link #results} and {@link #rationales} hold the
+     * effective overrides, which are the ones of the innermost scope in {@link #overlays} or
+     * otherwise the ones set outside of the scopes in {@link #baseResults} and
+     * {@link #baseRationales}.
+     */
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new String[0], new int[8], 0, new int[0],
+                new byte[0], new int[0], new byte[0], new Overlay[0]);
+
+        final String[] names;
+        final int[] index;
+        final int size;
+        final int[] results;
+        final byte[] rationales;
+        final int[] baseResults;
+        final byte[] baseRationales;
+        final Overlay[] overlays;
+
+        Snapshot(String[] names, int[] index, int size, int[] results, byte[] rationales,
+                 int[] baseResults, byte[] baseRationales, Overlay[] overlays) {
+            this.names = names;
+            this.index = index;
+            this.size = size;
+            this.results = results;
+            this.rationales = rationales;
+            this.baseResults = baseResults;
+            this.baseRationales = baseRationales;
+            this.overlays = overlays;
+        }
+
+        int slotOf(String permission) {
+            if (permission == null) {
+                return NO_SLOT;
+            }
+            int mask = index.length - 1;
+            for (int i = spread(permission.hashCode()) & mask; ; i = (i + 1) & mask) {
+                int entry = index[i];
+                if (entry == 0) {
+                    return NO_SLOT;
+                }
+                if (names[entry - 1].equals(permission)) {
+                    return entry - 1;
+                }
+            }
+        }
+
+        Snapshot withSlot(String permission) {
+            int newSize = size + 1;
+            String[] newNames = Arrays.copyOf(names, newSize);
+            newNames[size] = permission;
+
+            int capacity = index.length;
+            while (newSize * 2 > capacity) {
+                capacity *= 2;
+            }
+            int[] newIndex = new int[capacity];
+            for (int slot = 0; slot < newSize; slot++) {
+                insert(newIndex, newNames[slot], slot);
+            }
+            return new Snapshot(newNames, newIndex, newSize,
+                    grow(results, newSize), grow(rationales, newSize),
+                    grow(baseResults, newSize), grow(baseRationales, newSize),
+                    Arrays.copyOf(overlays, newSize));
+        }
+
+        Snapshot with(int slot, int baseResult, byte baseRationale, Overlay overlay) {
+            int result = overlay == null ? baseResult : overlay.result;
+            byte rationale = overlay == null ? baseRationale : overlay.rationale;
+            if (overlays[slot] == overlay && baseResults[slot] == baseResult
+                    && baseRationales[slot] == baseRationale) {
+                return this;
+            }
+            return new Snapshot(names, index, size,
+                    set(results, slot, result), set(rationales, slot, rationale),
+                    set(baseResults, slot, baseResult), set(baseRationales, slot, baseRationale),
+                    set(overlays, slot, overlay));
+        }
+
+        Snapshot cleared() {
+            return new Snapshot(names, index, size,
+                    grow(new int[0], size), grow(new byte[0], size),
+                    grow(new int[0], size), grow(new byte[0], size),
+                    new Overlay[size]);
+        }
+
+        private static int[] grow(int[] values, int newSize) {
+            int[] grown = Arrays.copyOf(values, newSize);
+            Arrays.fill(grown, values.length, newSize, NO_OVERRIDE);
+            return grown;
+        }
+
+        private static byte[] grow(byte[] values, int newSize) {
+            byte[] grown = Arrays.copyOf(values, newSize);
+            Arrays.fill(grown, values.length, newSize, (byte) RATIONALE_UNSET);
+            return grown;
+        }
+
+        private static int[] set(int[] values, int slot, int value) {
+            if (values[slot] == value) {
+                return values;
+            }
+            int[] copy = values.clone();
+            copy[slot] = value;
+            return copy;
+        }
+
+        private static byte[] set(byte[] values, int slot, byte value) {
+            if (values[slot] == value) {
+                return values;
+            }
+            byte[] copy = values.clone();
+            copy[slot] = value;
+            return copy;
+        }
+
+        private static Overlay[] set(Overlay[] values, int slot, Overlay value) {
+            if (values[slot] == value) {
+                return values;
+            }
+            Overlay[] copy = values.clone();
+            copy[slot] = value;
+            return copy;
+        }
+
+        private static void insert(int[] index, String permission, int slot) {
+            int mask = index.length - 1;
+            int i = spread(permission.hashCode()) & mask;
+            while (index[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            index[i] = slot + 1;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
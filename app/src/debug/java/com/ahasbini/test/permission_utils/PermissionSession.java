@@ -0,0 +1,116 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scopes the overrides of the permissions to a set of activities, so that independent scenarios
+ * can run concurrently within the same process without affecting each other. Activities are bound
+ * to a session by launching them with {@link #bind(Intent)}, and the session is then looked up
+ * through their {@link CustomBuildContext} with {@link #of(Context)}. Activities which aren't bound
+ * use the default session, whose store is {@link PermissionOverrideStore#getInstance()}.
+ */
+
+public final class PermissionSession {
+
+    public static final String EXTRA_SESSION_ID =
+            "com.ahasbini.test.permission_utils.PERMISSION_SESSION_ID";
+
+    private static final int DEFAULT_ID = 0;
+
+    private static final AtomicInteger ids = new AtomicInteger(DEFAULT_ID);
+    private static final ConcurrentHashMap<Integer, PermissionSession> sessions =
+            new ConcurrentHashMap<>();
+    private static final PermissionSession defaultSession =
+            new PermissionSession(DEFAULT_ID, PermissionOverrideStore.getInstance());
+
+    private final int id;
+    private final PermissionOverrideStore store;
+
+    private PermissionSession(int id, PermissionOverrideStore store) {
+        this.id = id;
+        this.store = store;
+    }
+
+    public static PermissionSession getDefault() {
+        return defaultSession;
+    }
+
+    /**
+     * Creates a session with its own empty {@link PermissionOverrideStore}, to be closed with
+     * {@link #close()} when the scenario finishes.
+     */
+    public static PermissionSession create() {
+        PermissionSession session = new PermissionSession(ids.incrementAndGet(),
+                new PermissionOverrideStore());
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * @return the session of the intent's {@link #EXTRA_SESSION_ID}, or the default session if the
+     * intent isn't bound or the session was closed
+     */
+    public static PermissionSession forIntent(Intent intent) {
+        if (intent == null || !intent.hasExtra(EXTRA_SESSION_ID)) {
+            return defaultSession;
+        }
+        PermissionSession session = sessions.get(intent.getIntExtra(EXTRA_SESSION_ID, DEFAULT_ID));
+        return session == null ? defaultSession : session;
+    }
+
+    /**
+     * Looks up the session of the context by unwrapping it until its {@link CustomBuildContext}.
+     *
+     * @return the session of the context, or the default session if it isn't an activity context
+     */
+    public static PermissionSession of(Context context) {
+        while (context instanceof ContextWrapper) {
+            if (context instanceof CustomBuildContext) {
+                return ((CustomBuildContext) context).getPermissionSession();
+            }
+            context = ((ContextWrapper) context).getBaseContext();
+        }
+        return defaultSession;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isDefault() {
+        return id == DEFAULT_ID;
+    }
+
+    public PermissionOverrideStore getStore() {
+        return store;
+    }
+
+    /**
+     * Binds the activity launched by the intent to this session.
+     *
+     * @return the same intent
+     */
+    public Intent bind(Intent intent) {
+        return intent.putExtra(EXTRA_SESSION_ID, id);
+    }
+
+    /**
+     * Unregisters the session, activities launched with it afterwards use the default session.
+     */
+    public void close() {
+        if (!isDefault()) {
+            sessions.remove(id);
+            store.clearAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionSession{id=" + id + '}';
+    }
+}
@@ -0,0 +1,249 @@
+package com.ahasbini.test.permission_utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A complete trace of the permission checks, rationale queries, requests and delivered results of a
+ * test, recorded and replayed by {@link PermissionTraceRecorder}. Unlike
+ * {@link PermissionTraceBuffer} it keeps every event, and it's saved in a compact versioned text
+ * file: a header line, a table of the permission names, then one line per event referencing the
+ * permissions by their index in the table.
+ */
+
+public final class PermissionTrace {
+
+    public static final int VERSION = 1;
+
+    public static final int TYPE_CHECK_PERMISSION = PermissionTraceBuffer.SOURCE_CHECK_PERMISSION;
+    public static final int TYPE_CHECK_SELF_PERMISSION =
+            PermissionTraceBuffer.SOURCE_CHECK_SELF_PERMISSION;
+    public static final int TYPE_SHOULD_SHOW_RATIONALE =
+            PermissionTraceBuffer.SOURCE_SHOULD_SHOW_RATIONALE;
+    public static final int TYPE_REQUEST = 3;
+    public static final int TYPE_RESULT = 4;
+
+    private static final String HEADER = "permission-trace";
+    private static final String PERMISSION_CODE = "P";
+    private static final String EMPTY = "-";
+    private static final String[] TYPE_CODES = {"C", "S", "R", "Q", "D"};
+    private static final String[] TYPE_NAMES = {
+            "checkPermission", "checkSelfPermission", "shouldShowRequestPermissionRationale",
+            "requestPermissions", "onRequestPermissionsResult"
+    };
+
+    /**
+     * Number of events shown around the first divergence by {@link #diff(PermissionTrace)}.
+     */
+    private static final int DIFF_CONTEXT = 3;
+
+    /**
+     * An event of the trace. Checks and rationale queries have a single permission and result, and
+     * their request code is 0.
+     */
+    public static final class Event {
+
+        final int type;
+        final int requestCode;
+        final String[] permissions;
+        final int[] results;
+
+        Event(int type, int requestCode, String[] permissions, int[] results) {
+            this.type = type;
+            this.requestCode = requestCode;
+            this.permissions = permissions;
+            this.results = results;
+        }
+
+        /**
+         * @return what the event answers to, the same for the recorded and replayed events
+         */
+        String key() {
+            return type + " " + requestCode + " " + Arrays.toString(permissions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Event)) {
+                return false;
+            }
+            Event event = (Event) o;
+            return type == event.type && requestCode == event.requestCode
+                    && Arrays.equals(permissions, event.permissions)
+                    && Arrays.equals(results, event.results);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key().hashCode() + Arrays.hashCode(results);
+        }
+
+        @Override
+        public String toString() {
+            return TYPE_NAMES[type] + (type >= TYPE_REQUEST ? " requestCode=" + requestCode : "")
+                    + " " + Arrays.toString(permissions)
+                    + (type == TYPE_REQUEST ? "" : " -> " + Arrays.toString(results));
+        }
+    }
+
+    private final List<Event> events = new ArrayList<>();
+
+    synchronized void add(Event event) {
+        events.add(event);
+    }
+
+    public synchronized List<Event> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    public synchronized int size() {
+        return events.size();
+    }
+
+    /**
+     * Compares the events with the expected trace.
+     *
+     * @param expected the recorded trace
+     * @return <code>null</code> if the traces are the same, otherwise the events around the first
+     * divergence in both traces
+     */
+    public String diff(PermissionTrace expected) {
+        List<Event> expectedEvents = expected.getEvents();
+        List<Event> actualEvents = getEvents();
+        int index = 0;
+        while (index < expectedEvents.size() && index < actualEvents.size()
+                && expectedEvents.get(index).equals(actualEvents.get(index))) {
+            index++;
+        }
+        if (index == expectedEvents.size() && index == actualEvents.size()) {
+            return null;
+        }
+
+        StringBuilder diff = new StringBuilder("Traces diverge at event #").append(index)
+                .append(" (recorded ").append(expectedEvents.size()).append(" events, replayed ")
+                .append(actualEvents.size()).append(")\n");
+        for (int i = Math.max(0, index - DIFF_CONTEXT); i < index; i++) {
+            diff.append("  #").append(i).append(' ').append(expectedEvents.get(i)).append('\n');
+        }
+        for (int i = index; i < Math.min(expectedEvents.size(), index + DIFF_CONTEXT); i++) {
+            diff.append("- #").append(i).append(' ').append(expectedEvents.get(i)).append('\n');
+        }
+        for (int i = index; i < Math.min(actualEvents.size(), index + DIFF_CONTEXT); i++) {
+            diff.append("+ #").append(i).append(' ').append(actualEvents.get(i)).append('\n');
+        }
+        return diff.toString();
+    }
+
+    /**
+     * Writes the trace to the file.
+     *
+     * @throws IOException due to write error
+     */
+    public void write(File file) throws IOException {
+        List<Event> snapshot = getEvents();
+        Map<String, Integer> indexes = new HashMap<>();
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            writer.println(HEADER + " " + VERSION);
+            for (Event event : snapshot) {
+                for (String permission : event.permissions) {
+                    if (!indexes.containsKey(permission)) {
+                        indexes.put(permission, indexes.size());
+                        writer.println(PERMISSION_CODE + " " + permission);
+                    }
+                }
+            }
+            for (Event event : snapshot) {
+                StringBuilder line = new StringBuilder(TYPE_CODES[event.type]);
+                if (event.type >= TYPE_REQUEST) {
+                    line.append(' ').append(event.requestCode);
+                }
+                line.append(' ').append(event.permissions.length == 0 ? EMPTY : "");
+                for (int i = 0; i < event.permissions.length; i++) {
+                    line.append(i == 0 ? "" : ",").append(indexes.get(event.permissions[i]));
+                }
+                if (event.type != TYPE_REQUEST) {
+                    // Cancelled requests are delivered with empty results
+                    line.append(' ').append(event.results.length == 0 ? EMPTY : "");
+                    for (int i = 0; i < event.results.length; i++) {
+                        line.append(i == 0 ? "" : ",").append(event.results[i]);
+                    }
+                }
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+        if (writer.checkError()) {
+            throw new IOException("Unable to write " + file);
+        }
+    }
+
+    /**
+     * Reads a trace written by {@link #write(File)}.
+     *
+     * @throws IOException due to read error, or if the file isn't a trace of this version
+     */
+    public static PermissionTrace read(File file) throws IOException {
+        PermissionTrace trace = new PermissionTrace();
+        List<String> permissions = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String header = reader.readLine();
+            if (header == null || !header.equals(HEADER + " " + VERSION)) {
+                throw new IOException("Unsupported trace " + file + ": " + header);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                if (fields[0].equals(PERMISSION_CODE)) {
+                    permissions.add(fields[1]);
+                    continue;
+                }
+                int type = Arrays.asList(TYPE_CODES).indexOf(fields[0]);
+                if (type == -1) {
+                    throw new IOException("Invalid event in " + file + ": " + line);
+                }
+                int field = 1;
+                int requestCode = type >= TYPE_REQUEST ? Integer.parseInt(fields[field++]) : 0;
+                String[] names = split(fields[field++]);
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = permissions.get(Integer.parseInt(names[i]));
+                }
+                int[] results = new int[0];
+                if (type != TYPE_REQUEST) {
+                    String[] values = split(fields[field]);
+                    results = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        results[i] = Integer.parseInt(values[i]);
+                    }
+                }
+                trace.add(new Event(type, requestCode, names, results));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid trace " + file, e);
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    private static String[] split(String field) {
+        return field.equals(EMPTY) ? new String[0] : field.split(",");
+    }
+}
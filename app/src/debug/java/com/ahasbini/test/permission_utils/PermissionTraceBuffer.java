@@ -0,0 +1,110 @@
+package com.ahasbini.test.permission_utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A preallocated ring buffer of fixed-size trace records of the permission checks and rationale
+ * queries handled by {@link CustomBuildContext} and {@link CustomBuildBaseActivity}. It replaces
+ * logging on every check, writing a record doesn't allocate, and the records are only formatted when
+ * {@link #dump()} or {@link #dump(File)} is called (for example by the tests when they fail).
+ */
+
+public final class PermissionTraceBuffer {
+
+    private static final String TAG = PermissionTraceBuffer.class.getSimpleName();
+
+    public static final int SOURCE_CHECK_PERMISSION = 0;
+    public static final int SOURCE_CHECK_SELF_PERMISSION = 1;
+    public static final int SOURCE_SHOULD_SHOW_RATIONALE = 2;
+
+    private static final String[] SOURCE_NAMES = {
+            "checkPermission", "checkSelfPermission", "shouldShowRequestPermissionRationale"
+    };
+
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final PermissionTraceBuffer instance = new PermissionTraceBuffer();
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final int[] slots = new int[CAPACITY];
+    private final int[] results = new int[CAPACITY];
+    private final byte[] sources = new byte[CAPACITY];
+    private final boolean[] overridden = new boolean[CAPACITY];
+    private final long[] threadIds = new long[CAPACITY];
+    private final long[] nanoTimes = new long[CAPACITY];
+
+    public static PermissionTraceBuffer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Writes a record, overwriting the oldest one once the buffer is full.
+     *
+     * @param slot       slot of the permission in {@link PermissionOverrideStore}
+     * @param result     result of the check, or 1/0 for rationale queries
+     * @param source     one of the <code>SOURCE_</code> constants
+     * @param overridden <code>true</code> if the result came from {@link PermissionOverrideStore}
+     */
+    public void record(int slot, int result, int source, boolean overridden) {
+        int i = (int) (sequence.getAndIncrement() & MASK);
+        slots[i] = slot;
+        results[i] = result;
+        sources[i] = (byte) source;
+        this.overridden[i] = overridden;
+        threadIds[i] = Thread.currentThread().getId();
+        nanoTimes[i] = System.nanoTime();
+    }
+
+    /**
+     * @return the number of records written since the last {@link #clear()}, including overwritten
+     */
+    public long getCount() {
+        return sequence.get();
+    }
+
+    public void clear() {
+        sequence.set(0);
+    }
+
+    /**
+     * Writes the records in the buffer, oldest first, to logcat.
+     */
+    public void dump() {
+        long end = sequence.get();
+        for (long seq = Math.max(0, end - CAPACITY); seq < end; seq++) {
+            Log.i(TAG, format(seq));
+        }
+    }
+
+    /**
+     * Writes the records in the buffer, oldest first, to the file.
+     *
+     * @throws IOException due to write error
+     */
+    public void dump(File file) throws IOException {
+        long end = sequence.get();
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            for (long seq = Math.max(0, end - CAPACITY); seq < end; seq++) {
+                writer.println(format(seq));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private String format(long seq) {
+        int i = (int) (seq & MASK);
+        return "#" + seq + " t=" + nanoTimes[i] + " thread=" + threadIds[i] + " "
+                + SOURCE_NAMES[sources[i]] + " "
+                + PermissionOverrideStore.getInstance().nameOf(slots[i])
+                + " result=" + results[i] + (overridden[i] ? " (overridden)" : "");
+    }
+}
@@ -0,0 +1,155 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Records the permission checks, rationale queries, requests and delivered results of a test into
+ * a {@link PermissionTrace}, or replays a recorded trace: while replaying, the checks and the
+ * requests are answered with the recorded results, without going to the Android System and without
+ * granting anything. Events are matched by their type and permissions (and request code) in the
+ * order they were recorded, and the events actually seen while replaying are traced as well so that
+ * they can be compared with the recording. Checks which can't be matched fall back to the live
+ * behavior.
+ */
+
+public final class PermissionTraceRecorder {
+
+    /**
+     * Returned by {@link #replay(int, int)} when the trace has no result for the check.
+     */
+    public static final int NOT_RECORDED = Integer.MIN_VALUE;
+
+    private static final int MODE_OFF = 0;
+    private static final int MODE_RECORD = 1;
+    private static final int MODE_REPLAY = 2;
+
+    private static final PermissionTraceRecorder instance = new PermissionTraceRecorder();
+
+    private volatile int mode = MODE_OFF;
+    private volatile PermissionTrace trace = new PermissionTrace();
+    private PermissionTrace recorded;
+    private final Map<String, Queue<PermissionTrace.Event>> pending = new HashMap<>();
+
+    public static PermissionTraceRecorder getInstance() {
+        return instance;
+    }
+
+    public boolean isReplaying() {
+        return mode == MODE_REPLAY;
+    }
+
+    public synchronized void startRecording() {
+        trace = new PermissionTrace();
+        recorded = null;
+        pending.clear();
+        mode = MODE_RECORD;
+    }
+
+    /**
+     * @param recorded trace to be replayed
+     */
+    public synchronized void startReplay(PermissionTrace recorded) {
+        trace = new PermissionTrace();
+        this.recorded = recorded;
+        pending.clear();
+        for (PermissionTrace.Event event : recorded.getEvents()) {
+            Queue<PermissionTrace.Event> events = pending.get(event.key());
+            if (events == null) {
+                events = new ArrayDeque<>();
+                pending.put(event.key(), events);
+            }
+            events.add(event);
+        }
+        mode = MODE_REPLAY;
+    }
+
+    /**
+     * Stops recording or replaying.
+     *
+     * @return the events traced since the start
+     */
+    public synchronized PermissionTrace stop() {
+        mode = MODE_OFF;
+        pending.clear();
+        return trace;
+    }
+
+    /**
+     * @return <code>null</code> if not replaying or if the events so far match the recording,
+     * otherwise the diff of the traces
+     */
+    public synchronized String getDivergence() {
+        return mode == MODE_REPLAY ? trace.diff(recorded) : null;
+    }
+
+    /**
+     * Traces a check or a rationale query while recording or replaying.
+     *
+     * @param type   one of the check types of {@link PermissionTrace}
+     * @param slot   slot of the permission in {@link PermissionOverrideStore}
+     * @param result result of the check, or 1/0 for rationale queries
+     */
+    public void record(int type, int slot, int result) {
+        if (mode != MODE_OFF) {
+            trace.add(new PermissionTrace.Event(type, 0,
+                    new String[]{PermissionOverrideStore.getInstance().nameOf(slot)},
+                    new int[]{result}));
+        }
+    }
+
+    /**
+     * Traces a request for permissions sent by the app while recording or replaying.
+     */
+    public void recordRequest(int requestCode, String[] permissions) {
+        if (mode != MODE_OFF) {
+            trace.add(new PermissionTrace.Event(PermissionTrace.TYPE_REQUEST, requestCode,
+                    permissions.clone(), new int[0]));
+        }
+    }
+
+    /**
+     * Traces the results delivered to the app while recording or replaying.
+     */
+    public void recordResult(int requestCode, String[] permissions, int[] grantResults) {
+        if (mode != MODE_OFF) {
+            trace.add(new PermissionTrace.Event(PermissionTrace.TYPE_RESULT, requestCode,
+                    permissions.clone(), grantResults.clone()));
+        }
+    }
+
+    /**
+     * @param type one of the check types of {@link PermissionTrace}
+     * @param slot slot of the permission in {@link PermissionOverrideStore}
+     * @return the next recorded result of the check, or {@link #NOT_RECORDED}
+     */
+    public int replay(int type, int slot) {
+        PermissionTrace.Event event = poll(new PermissionTrace.Event(type, 0,
+                new String[]{PermissionOverrideStore.getInstance().nameOf(slot)}, null));
+        return event == null ? NOT_RECORDED : event.results[0];
+    }
+
+    /**
+     * @return the next recorded results of the request, or <code>null</code> if the request wasn't
+     * recorded
+     */
+    public int[] replayRequest(int requestCode, String[] permissions) {
+        if (poll(new PermissionTrace.Event(PermissionTrace.TYPE_REQUEST, requestCode, permissions,
+                null)) == null) {
+            return null;
+        }
+        PermissionTrace.Event result = poll(new PermissionTrace.Event(PermissionTrace.TYPE_RESULT,
+                requestCode, permissions, null));
+        return result == null ? null : result.results.clone();
+    }
+
+    private synchronized PermissionTrace.Event poll(PermissionTrace.Event query) {
+        if (mode != MODE_REPLAY) {
+            return null;
+        }
+        Queue<PermissionTrace.Event> events = pending.get(query.key());
+        return events == null ? null : events.poll();
+    }
+}
@@ -0,0 +1,174 @@
+package com.ahasbini.test.permission_utils;
+
+import android.os.Process;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An optional cache of the real (not overridden) permission results which
+ * {@link CustomBuildContext} gets from the Android System, keyed by the
+ * {@link PermissionOverrideStore} slot of the permission and the uid. It saves the binder call to
+ * the package manager on repeated checks, and is invalidated by the tests whenever they grant a
+ * permission. Every invalidation moves the epoch forward, and results fetched in an older epoch are
+ * dropped, hence a result fetched concurrently with a grant is never kept.
+ * <p></p>
+ * The results of the app's own uid are held in chunks of {@link #CHUNK_SIZE} slots, which are never
+ * copied. The table of chunks is copied to grow when a permission is interned past its end, hence
+ * every permission is cached whatever the number of interned permissions.
+ */
+
+public final class RealPermissionCache {
+
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final int CHUNK_BITS = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int INITIAL_CHUNKS = 4;
+
+    private static final RealPermissionCache instance = new RealPermissionCache();
+
+    private volatile AtomicIntegerArray[] ownResults =
+            grow(new AtomicIntegerArray[0], INITIAL_CHUNKS);
+    private final ConcurrentHashMap<Long, Integer> otherResults = new ConcurrentHashMap<>();
+    private final AtomicLong epoch = new AtomicLong();
+    private volatile boolean enabled;
+
+    private RealPermissionCache() {
+    }
+
+    public static RealPermissionCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the cache, clearing it in both cases.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        invalidateAll();
+    }
+
+    /**
+     * @return the current epoch, to be read before fetching a result to be passed to
+     * {@link #put(int, int, int, long)}
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * @return the cached result or {@link #UNKNOWN}
+     */
+    public int get(int slot, int uid) {
+        if (uid == MyUid.VALUE && slot >= 0) {
+            AtomicIntegerArray[] current = ownResults;
+            int chunk = slot >>> CHUNK_BITS;
+            return chunk < current.length ? current[chunk].get(slot & (CHUNK_SIZE - 1)) : UNKNOWN;
+        }
+        Integer result = otherResults.get(key(slot, uid));
+        return result == null ? UNKNOWN : result;
+    }
+
+    /**
+     * Caches the result unless the cache was invalidated since the epoch.
+     *
+     * @param epoch value of {@link #getEpoch()} before the result was fetched
+     */
+    public void put(int slot, int uid, int result, long epoch) {
+        if (uid == MyUid.VALUE && slot >= 0) {
+            AtomicIntegerArray[] current = ownResults;
+            int chunk = slot >>> CHUNK_BITS;
+            if (chunk >= current.length) {
+                current = growChunks(chunk + 1);
+            }
+            int index = slot & (CHUNK_SIZE - 1);
+            if (current[chunk].compareAndSet(index, UNKNOWN, result)
+                    && this.epoch.get() != epoch) {
+                current[chunk].set(index, UNKNOWN);
+            }
+            return;
+        }
+        Long key = key(slot, uid);
+        if (otherResults.putIfAbsent(key, result) == null && this.epoch.get() != epoch) {
+            otherResults.remove(key);
+        }
+    }
+
+    /**
+     * Drops the cached results of the permission for all uids.
+     */
+    public void invalidate(String permission) {
+        int slot = PermissionOverrideStore.getInstance().slotOf(permission);
+        epoch.incrementAndGet();
+        if (slot == PermissionOverrideStore.NO_SLOT) {
+            return;
+        }
+        AtomicIntegerArray[] current = ownResults;
+        if (slot >>> CHUNK_BITS < current.length) {
+            current[slot >>> CHUNK_BITS].set(slot & (CHUNK_SIZE - 1), UNKNOWN);
+        }
+        Iterator<Long> keys = otherResults.keySet().iterator();
+        while (keys.hasNext()) {
+            if ((int) (keys.next() >>> 32) == slot) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the cached results.
+     */
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+        for (AtomicIntegerArray chunk : ownResults) {
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                chunk.set(i, UNKNOWN);
+            }
+        }
+        otherResults.clear();
+    }
+
+    /**
+     * @return the chunks of the own results, grown to hold at least the number of chunks
+     */
+    private synchronized AtomicIntegerArray[] growChunks(int minChunks) {
+        AtomicIntegerArray[] current = ownResults;
+        if (current.length < minChunks) {
+            current = grow(current, Math.max(minChunks, current.length * 2));
+            ownResults = current;
+        }
+        return current;
+    }
+
+    private static AtomicIntegerArray[] grow(AtomicIntegerArray[] chunks, int newLength) {
+        AtomicIntegerArray[] grown = Arrays.copyOf(chunks, newLength);
+        for (int i = chunks.length; i < newLength; i++) {
+            grown[i] = new AtomicIntegerArray(CHUNK_SIZE);
+            for (int j = 0; j < CHUNK_SIZE; j++) {
+                grown[i].set(j, UNKNOWN);
+            }
+        }
+        return grown;
+    }
+
+    private static long key(int slot, int uid) {
+        return ((long) slot << 32) | (uid & 0xFFFFFFFFL);
+    }
+
+    /**
+     * The uid of the app, only looked up once the cache is used so that the disabled cache doesn't
+     * depend on the Android runtime.
+     */
+    private static final class MyUid {
+
+        static final int VALUE = Process.myUid();
+    }
+}
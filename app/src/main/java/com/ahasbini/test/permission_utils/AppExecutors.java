@@ -0,0 +1,63 @@
+package com.ahasbini.test.permission_utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executors shared by the app: a small pool of background threads for the I/O (instead of
+ * starting a thread per task), and the main thread for delivering the results.
+ */
+
+final class AppExecutors {
+
+    private static final int BACKGROUND_THREADS = 2;
+
+    private static final ExecutorService background = Executors.newFixedThreadPool(
+            BACKGROUND_THREADS, new ThreadFactory() {
+
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "app-background-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static final Executor mainThread = new Executor() {
+
+        private final Handler handler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            handler.post(command);
+        }
+    };
+
+    private AppExecutors() {
+    }
+
+    static Executor background() {
+        return background;
+    }
+
+    static Executor mainThread() {
+        return mainThread;
+    }
+}
@@ -0,0 +1,52 @@
+package com.ahasbini.test.permission_utils;
+
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the entries of a {@link DirectoryListing} in a {@link RecyclerView}, appending the pages
+ * as they arrive.
+ */
+
+class DirectoryEntryAdapter extends RecyclerView.Adapter<DirectoryEntryAdapter.ViewHolder> {
+
+    private final List<String> entries = new ArrayList<>();
+
+    void addEntries(List<String> page) {
+        int start = entries.size();
+        entries.addAll(page);
+        notifyItemRangeInserted(start, page.size());
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new ViewHolder(LayoutInflater.from(parent.getContext())
+                .inflate(android.R.layout.simple_list_item_1, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        holder.textView.setText(entries.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+        return entries.size();
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView textView;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            textView = itemView.findViewById(android.R.id.text1);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.ahasbini.test.permission_utils;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.MainThread;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Lists the entries of a directory in pages, directories having a trailing <code>/</code>. Each
+ * page is read on the background executor only when requested (such as when the list showing the
+ * entries is scrolled to its end) and delivered on the main thread, hence only the entries shown
+ * are held in memory and checked for being directories. The directory is streamed on Oreo and
+ * above, older versions only giving the names of all the entries at once.
+ */
+
+class DirectoryListing {
+
+    private static final String TAG = DirectoryListing.class.getSimpleName();
+
+    static final int PAGE_SIZE = 100;
+
+    interface Listener {
+
+        /**
+         * @param entries  the next entries of the directory
+         * @param complete <code>true</code> if there are no more entries
+         */
+        @MainThread
+        void onPage(List<String> entries, boolean complete);
+    }
+
+    /**
+     * The entries of the directory, read one by one on the background executor.
+     */
+    private interface Source extends Closeable {
+
+        /**
+         * @return the next entry or <code>null</code> when there are no more entries
+         */
+        File next() throws IOException;
+    }
+
+    private final File directory;
+    private final Listener listener;
+    private final Executor background;
+    private final Executor mainThread;
+
+    private Source source;
+    private boolean loading;
+    private boolean complete;
+    private volatile boolean cancelled;
+
+    DirectoryListing(File directory, Listener listener) {
+        this(directory, listener, AppExecutors.background(), AppExecutors.mainThread());
+    }
+
+    DirectoryListing(File directory, Listener listener, Executor background, Executor mainThread) {
+        this.directory = directory;
+        this.listener = listener;
+        this.background = background;
+        this.mainThread = mainThread;
+    }
+
+    /**
+     * Reads the next page, unless a page is being read already or the listing is complete or
+     * cancelled.
+     */
+    @MainThread
+    void requestPage() {
+        if (loading || complete || cancelled) {
+            return;
+        }
+        loading = true;
+        background.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final List<String> entries = new ArrayList<>(PAGE_SIZE);
+                final boolean last = readPage(entries);
+                mainThread.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        loading = false;
+                        if (cancelled) {
+                            return;
+                        }
+                        complete = last;
+                        listener.onPage(entries, last);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stops reading the directory, the listener isn't called anymore.
+     */
+    @MainThread
+    void cancel() {
+        cancelled = true;
+        background.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                closeSource();
+            }
+        });
+    }
+
+    /**
+     * @return <code>true</code> while the directory is open, between the pages being read
+     */
+    synchronized boolean isOpen() {
+        return source != null;
+    }
+
+    /**
+     * @return <code>true</code> if there are no more entries
+     */
+    private synchronized boolean readPage(List<String> entries) {
+        try {
+            if (cancelled) {
+                // The close posted by cancel() might have run before the source was opened
+                closeSource();
+                return true;
+            }
+            if (source == null) {
+                source = open(directory);
+            }
+            while (entries.size() < PAGE_SIZE) {
+                if (cancelled) {
+                    closeSource();
+                    return true;
+                }
+                File entry = source.next();
+                if (entry == null) {
+                    closeSource();
+                    return true;
+                }
+                entries.add(entry.isDirectory() ? entry.getName() + "/" : entry.getName());
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "readPage: couldn't list " + directory, e);
+            closeSource();
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void closeSource() {
+        if (source == null) {
+            return;
+        }
+        try {
+            source.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeSource: ", e);
+        }
+        source = null;
+    }
+
+    private static Source open(File directory) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return new StreamSource(directory);
+        }
+        return new NamesSource(directory);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private static class StreamSource implements Source {
+
+        private final DirectoryStream<Path> stream;
+        private final Iterator<Path> iterator;
+
+        StreamSource(File directory) throws IOException {
+            stream = Files.newDirectoryStream(directory.toPath());
+            iterator = stream.iterator();
+        }
+
+        @Override
+        public File next() {
+            return iterator.hasNext() ? iterator.next().toFile() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+
+    private static class NamesSource implements Source {
+
+        private final File directory;
+        private final String[] names;
+        private int index;
+
+        NamesSource(File directory) throws IOException {
+            this.directory = directory;
+            names = directory.list();
+            if (names == null) {
+                throw new IOException("Unable to list " + directory);
+            }
+        }
+
+        @Override
+        public File next() {
+            return index < names.length ? new File(directory, names[index++]) : null;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,20 +1,22 @@
 package com.ahasbini.test.permission_utils;
 
 import android.Manifest;
+import android.content.DialogInterface;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Environment;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AlertDialog;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.io.File;
+import java.util.List;
 
 /**
  * A placeholder fragment containing a simple view.
@@ -23,6 +25,9 @@ public class MainActivityFragment extends Fragment {
 
     private static final String TAG = MainActivityFragment.class.getSimpleName();
 
+    private DirectoryListing sdCardListing;
+    private AlertDialog sdCardDialog;
+
     public MainActivityFragment() {
     }
 
@@ -59,35 +64,67 @@ public class MainActivityFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        if (sdCardListing != null) {
+            sdCardListing.cancel();
+            sdCardListing = null;
+        }
+        if (sdCardDialog != null) {
+            sdCardDialog.dismiss();
+            sdCardDialog = null;
+        }
+        super.onDestroyView();
+    }
+
     private void showSdCardLisDialog() {
-        new Thread(new Runnable() {
+        // Listing the entries in pages as the list is scrolled, rather than all of them at once
+        RecyclerView recyclerView = (RecyclerView) LayoutInflater.from(getActivity())
+                .inflate(R.layout.dialog_sd_card, null);
+        final DirectoryEntryAdapter adapter = new DirectoryEntryAdapter();
+        recyclerView.setAdapter(adapter);
+
+        if (sdCardListing != null) {
+            sdCardListing.cancel();
+        }
+        final DirectoryListing listing = new DirectoryListing(
+                Environment.getExternalStorageDirectory(), new DirectoryListing.Listener() {
 
             @Override
-            public void run() {
-                // Getting list of files
-                File externalStorageDirectory = Environment.getExternalStorageDirectory();
-                final StringBuilder sdCardDir = new StringBuilder();
-                for (File file : externalStorageDirectory.listFiles()) {
-                    sdCardDir.append(file.getName()).append(file.isDirectory() ? "/\n" : "\n");
-                }
-
-                new Handler(getActivity().getMainLooper())
-                        .post(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                // Displaying them in a dialog
-                                new AlertDialog.Builder(getActivity())
-                                        .setTitle("List")
-                                        .setMessage(sdCardDir.toString())
-                                        .setPositiveButton(android.R.string.ok, null)
-                                        .setCancelable(false)
-                                        .show();
-                            }
-                        });
+            public void onPage(List<String> entries, boolean complete) {
+                Log.i(TAG, "onPage: " + entries.size() + " entries, complete: " + complete);
+                adapter.addEntries(entries);
             }
-        }).start();
+        });
+        sdCardListing = listing;
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
 
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager =
+                        (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= adapter.getItemCount() - DirectoryListing.PAGE_SIZE / 2) {
+                    listing.requestPage();
+                }
+            }
+        });
+        listing.requestPage();
+
+        // Displaying them in a dialog
+        sdCardDialog = new AlertDialog.Builder(getActivity())
+                .setTitle("List")
+                .setView(recyclerView)
+                .setPositiveButton(android.R.string.ok, null)
+                .setCancelable(false)
+                .setOnDismissListener(new DialogInterface.OnDismissListener() {
+
+                    @Override
+                    public void onDismiss(DialogInterface dialog) {
+                        listing.cancel();
+                    }
+                })
+                .show();
     }
 
     @Override
@@ -1,6 +1,7 @@
 package com.ahasbini.test.permission_utils;
 
 import android.annotation.SuppressLint;
+import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 
 /**
@@ -13,4 +14,9 @@ import android.support.v7.app.AppCompatActivity;
 @SuppressLint("Registered")
 public class CustomBuildBaseActivity extends AppCompatActivity {
 
+    /**
+     * Only called by the tests in debug mode.
+     */
+    protected void onPermissionOverridesChanged(@NonNull String[] permissions) {
+    }
 }
@@ -0,0 +1,24 @@
+package com.ahasbini.test.permission_utils;
+
+/**
+ * Checks the permissions granted to the app by the package manager, on the device or by a fake
+ * package manager on the local JVM.
+ */
+
+public interface PermissionChecker {
+
+    /**
+     * @param permission one of {@link android.Manifest.permission}
+     * @return the result of the check from the package manager (not overridden)
+     */
+    int checkSelfPermission(String permission);
+
+    /**
+     * Waits for the permissions which have just been granted to appear as granted in checks.
+     *
+     * @param permissions granted permissions
+     * @return <code>true</code> if all the permissions are granted
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    boolean awaitGranted(String[] permissions) throws InterruptedException;
+}
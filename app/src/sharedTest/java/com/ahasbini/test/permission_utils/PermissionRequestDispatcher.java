@@ -0,0 +1,144 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.pm.PackageManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Handles a batch of requests for permissions the way the delegate of <code>PermissionRule</code>
+ * does: the overrides denying the requested permissions are removed, the merged permissions which
+ * are missing are granted once through <code>pm grant</code> commands, and each request gets its
+ * results delivered on the delivery {@link Executor}. It doesn't depend on the Android test
+ * framework, hence the same flow runs on the device and on the local JVM.
+ */
+
+class PermissionRequestDispatcher {
+
+    interface Request {
+
+        String[] getPermissions();
+
+        /**
+         * Called before the permissions are granted to remove the overrides denying them.
+         */
+        void removeOverrides();
+
+        /**
+         * Called on the delivery executor with the results of the request.
+         */
+        void deliver(int[] grantResults);
+    }
+
+    interface GrantCallback {
+
+        /**
+         * Called after the missing permissions were granted and awaited.
+         *
+         * @param elapsed time in milliseconds from granting until the grants appeared in checks
+         */
+        void onGranted(String[] permissions, long elapsed, boolean granted);
+    }
+
+    private final String packageName;
+    private final ShellExecutor shell;
+    private final PermissionChecker checker;
+    private final Executor delivery;
+    private final GrantCallback grantCallback;
+
+    PermissionRequestDispatcher(String packageName, ShellExecutor shell, PermissionChecker checker,
+                                Executor delivery, GrantCallback grantCallback) {
+        this.packageName = packageName;
+        this.shell = shell;
+        this.checker = checker;
+        this.delivery = delivery;
+        this.grantCallback = grantCallback;
+    }
+
+    /**
+     * @return the number of requests whose results were handed to the delivery executor
+     * @throws IOException          if the shell couldn't run the grant commands
+     * @throws InterruptedException if the thread was interrupted while waiting for the grants
+     */
+    int dispatch(List<? extends Request> batch) throws IOException, InterruptedException {
+        for (Request request : batch) {
+            request.removeOverrides();
+        }
+
+        // Permissions already granted are skipped
+        String[] missing = getMissingPermissions(checker, mergePermissions(batch));
+        if (missing.length > 0) {
+            long grantStart = System.nanoTime();
+            grantPermissions(shell, packageName, missing);
+            boolean granted = checker.awaitGranted(missing);
+            grantCallback.onGranted(missing, (System.nanoTime() - grantStart) / 1000000,
+                    granted);
+        }
+
+        int delivered = 0;
+        for (final Request request : batch) {
+            final int[] grantResults = new int[request.getPermissions().length];
+            Arrays.fill(grantResults, PackageManager.PERMISSION_GRANTED);
+            try {
+                delivery.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        request.deliver(grantResults);
+                    }
+                });
+                delivered++;
+            } catch (RejectedExecutionException e) {
+                // The requester is gone, its results can't be delivered
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * @return the unique permissions of the batch in the order they were first requested
+     */
+    static String[] mergePermissions(List<? extends Request> batch) {
+        Set<String> merged = new LinkedHashSet<>();
+        for (Request request : batch) {
+            Collections.addAll(merged, request.getPermissions());
+        }
+        return merged.toArray(new String[merged.size()]);
+    }
+
+    /**
+     * @return the permissions which are not granted to the app yet, in the requested order
+     */
+    static String[] getMissingPermissions(PermissionChecker checker, String[] permissions) {
+        List<String> missing = new ArrayList<>(permissions.length);
+        for (String permission : permissions) {
+            if (checker.checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED
+                    && !missing.contains(permission)) {
+                missing.add(permission);
+            }
+        }
+        return missing.toArray(new String[missing.size()]);
+    }
+
+    /**
+     * Runs the commands granting the permissions to the app, sent all at once to the shell.
+     *
+     * @return the results of the commands in the order of the permissions
+     * @throws IOException due to shell error
+     */
+    static List<ShellResult> grantPermissions(ShellExecutor shell, String packageName,
+                                              String[] permissions) throws IOException {
+        List<String> commands = new ArrayList<>(permissions.length);
+        for (String permission : permissions) {
+            commands.add("pm grant " + packageName + " " + permission);
+        }
+        return shell.executeAll(commands);
+    }
+}
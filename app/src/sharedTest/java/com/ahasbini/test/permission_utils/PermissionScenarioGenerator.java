@@ -0,0 +1,234 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Generates the permission scenarios run by <code>PermissionScenarioRunner</code>. Instead of the
+ * full matrix of <code>values^parameters</code> scenarios, it generates a covering array in which
+ * every combination of values of any <code>strength</code> parameters appears in at least one
+ * scenario (pairwise coverage for a strength of 2), using the in-parameter-order (IPOG) strategy:
+ * the array is built for the first <code>strength</code> parameters, then extended one parameter
+ * at a time, first by picking the value of the new parameter in the existing scenarios which covers
+ * the most missing combinations, then by adding scenarios for the combinations left.
+ * <p></p>
+ * Scenarios are arrays holding the index of the value of each parameter.
+ */
+
+final class PermissionScenarioGenerator {
+
+    /**
+     * The value of the parameters left free while extending the array.
+     */
+    private static final int ANY = -1;
+
+    private PermissionScenarioGenerator() {
+    }
+
+    /**
+     * @param parameters the number of parameters
+     * @param values the number of values of each parameter
+     * @param strength the number of parameters whose combinations must all be covered, the full
+     *                 matrix is generated if it's not less than the number of parameters
+     * @return the scenarios covering all the combinations of <code>strength</code> parameters
+     */
+    static List<int[]> generate(int parameters, int values, int strength) {
+        if (parameters < 0 || values < 1 || strength < 1) {
+            throw new IllegalArgumentException("Invalid parameters=" + parameters + ", values="
+                    + values + ", strength=" + strength);
+        }
+        strength = Math.min(strength, parameters);
+
+        List<int[]> scenarios = new ArrayList<>();
+        int[] first = new int[parameters];
+        Arrays.fill(first, ANY);
+        Arrays.fill(first, 0, strength, 0);
+        scenarios.add(first);
+        for (int parameter = 0; parameter < strength; parameter++) {
+            List<int[]> expanded = new ArrayList<>();
+            for (int[] scenario : scenarios) {
+                for (int value = 0; value < values; value++) {
+                    int[] copy = scenario.clone();
+                    copy[parameter] = value;
+                    expanded.add(copy);
+                }
+            }
+            scenarios = expanded;
+        }
+
+        for (int parameter = strength; parameter < parameters; parameter++) {
+            List<int[]> missing = getCombinations(parameter, values, strength);
+
+            // Horizontal growth: extending the existing scenarios
+            for (int[] scenario : scenarios) {
+                int bestValue = 0;
+                int bestCount = -1;
+                for (int value = 0; value < values; value++) {
+                    scenario[parameter] = value;
+                    int count = 0;
+                    for (int[] combination : missing) {
+                        if (covers(scenario, combination)) {
+                            count++;
+                        }
+                    }
+                    if (count > bestCount) {
+                        bestValue = value;
+                        bestCount = count;
+                    }
+                }
+                scenario[parameter] = bestValue;
+                removeCovered(missing, scenario);
+            }
+
+            // Vertical growth: adding scenarios for the combinations left
+            while (!missing.isEmpty()) {
+                int[] combination = missing.get(0);
+                int[] target = null;
+                for (int[] scenario : scenarios) {
+                    if (accepts(scenario, combination)) {
+                        target = scenario;
+                        break;
+                    }
+                }
+                if (target == null) {
+                    target = new int[parameters];
+                    Arrays.fill(target, ANY);
+                    scenarios.add(target);
+                }
+                for (int i = 0; i < combination.length; i += 2) {
+                    target[combination[i]] = combination[i + 1];
+                }
+                removeCovered(missing, target);
+            }
+        }
+
+        for (int[] scenario : scenarios) {
+            for (int i = 0; i < scenario.length; i++) {
+                if (scenario[i] == ANY) {
+                    scenario[i] = 0;
+                }
+            }
+        }
+        return scenarios;
+    }
+
+    /**
+     * Orders the scenarios so that each one differs in as few parameters as possible from the one
+     * before it, starting from the one with the most parameters at the first value.
+     */
+    static List<int[]> order(List<int[]> scenarios) {
+        List<int[]> remaining = new ArrayList<>(scenarios);
+        List<int[]> ordered = new ArrayList<>(scenarios.size());
+        int[] previous = null;
+        while (!remaining.isEmpty()) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < remaining.size(); i++) {
+                int distance = previous == null ? distance(new int[remaining.get(i).length],
+                        remaining.get(i)) : distance(previous, remaining.get(i));
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            previous = remaining.remove(best);
+            ordered.add(previous);
+        }
+        return ordered;
+    }
+
+    /**
+     * @return the number of scenarios of the full matrix
+     */
+    static long getFullMatrixSize(int parameters, int values) {
+        long size = 1;
+        for (int i = 0; i < parameters; i++) {
+            size *= values;
+        }
+        return size;
+    }
+
+    private static int distance(int[] a, int[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                distance++;
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * @return the combinations of <code>strength</code> parameters including the given one and
+     * the ones before it, each as pairs of parameter and value
+     */
+    private static List<int[]> getCombinations(int parameter, int values, int strength) {
+        List<int[]> subsets = new ArrayList<>();
+        addSubsets(subsets, new int[strength - 1], 0, 0, parameter);
+
+        List<int[]> combinations = new LinkedList<>();
+        for (int[] subset : subsets) {
+            int[] combination = new int[strength * 2];
+            for (int i = 0; i < subset.length; i++) {
+                combination[i * 2] = subset[i];
+            }
+            combination[subset.length * 2] = parameter;
+            addValues(combinations, combination, 0, values);
+        }
+        return combinations;
+    }
+
+    private static void addSubsets(List<int[]> subsets, int[] subset, int size, int start,
+                                   int end) {
+        if (size == subset.length) {
+            subsets.add(subset.clone());
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            subset[size] = i;
+            addSubsets(subsets, subset, size + 1, i + 1, end);
+        }
+    }
+
+    private static void addValues(List<int[]> combinations, int[] combination, int index,
+                                  int values) {
+        if (index * 2 == combination.length) {
+            combinations.add(combination.clone());
+            return;
+        }
+        for (int value = 0; value < values; value++) {
+            combination[index * 2 + 1] = value;
+            addValues(combinations, combination, index + 1, values);
+        }
+    }
+
+    private static boolean covers(int[] scenario, int[] combination) {
+        for (int i = 0; i < combination.length; i += 2) {
+            if (scenario[combination[i]] != combination[i + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean accepts(int[] scenario, int[] combination) {
+        for (int i = 0; i < combination.length; i += 2) {
+            int value = scenario[combination[i]];
+            if (value != ANY && value != combination[i + 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void removeCovered(List<int[]> missing, int[] scenario) {
+        for (Iterator<int[]> iterator = missing.iterator(); iterator.hasNext(); ) {
+            if (covers(scenario, iterator.next())) {
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.ahasbini.test.permission_utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Runs shell commands (such as <code>pm</code> or <code>settings</code> commands) with the
+ * privileges of the shell user and returns their {@link ShellResult}s.
+ */
+
+public interface ShellExecutor extends Closeable {
+
+    /**
+     * @param command to be run by the shell
+     * @return the result of the command
+     * @throws IOException if the shell couldn't run the command
+     */
+    ShellResult execute(String command) throws IOException;
+
+    /**
+     * Runs the commands in order, sending them all before waiting for their results when the
+     * implementation allows it.
+     *
+     * @param commands to be run by the shell
+     * @return the results of the commands in the same order
+     * @throws IOException if the shell couldn't run the commands
+     */
+    List<ShellResult> executeAll(List<String> commands) throws IOException;
+}
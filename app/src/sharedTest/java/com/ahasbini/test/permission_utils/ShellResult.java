@@ -0,0 +1,59 @@
+package com.ahasbini.test.permission_utils;
+
+/**
+ * The result of a command run by a {@link ShellExecutor}.
+ */
+
+public class ShellResult {
+
+    /**
+     * Exit code of the commands whose status couldn't be captured.
+     */
+    public static final int UNKNOWN_EXIT_CODE = Integer.MIN_VALUE;
+
+    private final String command;
+    private final int exitCode;
+    private final String stdout;
+    private final String stderr;
+
+    public ShellResult(String command, int exitCode, String stdout, String stderr) {
+        this.command = command;
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return <code>true</code> if the command exited with 0, or if its status is unknown and it
+     * didn't write to stderr
+     */
+    public boolean isSuccessful() {
+        return exitCode == 0 || (exitCode == UNKNOWN_EXIT_CODE && stderr.isEmpty());
+    }
+
+    @Override
+    public String toString() {
+        return "ShellResult{" +
+                "command='" + command + '\'' +
+                ", exitCode=" + exitCode +
+                ", stdout='" + stdout + '\'' +
+                ", stderr='" + stderr + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,82 @@
+package com.ahasbini.test.permission_utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs several commands in a single <code>sh -c</code> call for shells started with a command which
+ * isn't interpreted but split on whitespaces (such as
+ * <code>UiDevice.executeShellCommand(String)</code>), and which only return stdout. The spaces of
+ * the commands are replaced by <code>${IFS}</code> so that the script is a single word. Each command
+ * is run in a subshell whose stderr is redirected to a temporary file, then its exit status is
+ * echoed after a marker separating it from its stdout, followed by the content of the file and a
+ * marker separating it from the output of the next command. The closing parenthesis of the
+ * subshell ends the word before the redirection, which would otherwise be lexed as an argument of
+ * the command followed by a redirection of stdout.
+ */
+
+final class ShellScript {
+
+    private static final String EXIT_MARKER = "__SHELL_SCRIPT_EXIT__";
+    private static final String STDERR_MARKER = "__SHELL_SCRIPT_STDERR__";
+
+    private ShellScript() {
+    }
+
+    /**
+     * @param directory writable by the shell, without whitespaces, where the stderr of the commands
+     *                  is written to and deleted from
+     * @return the script to be passed as the single argument of <code>sh -c</code>
+     */
+    static String build(List<String> commands, String directory) {
+        StringBuilder script = new StringBuilder("f=").append(directory)
+                .append("/shell_script_$$.err;");
+        for (String command : commands) {
+            script.append("(${IFS}").append(command.trim().replaceAll("\\s+", "\\${IFS}"))
+                    .append(")2>$f;echo${IFS}").append(EXIT_MARKER)
+                    .append("$?;cat${IFS}$f;echo${IFS}").append(STDERR_MARKER).append(';');
+        }
+        return script.append("rm${IFS}-f${IFS}$f").toString();
+    }
+
+    /**
+     * @param output stdout of the script returned by {@link #build(List, String)}
+     * @return the results of the commands
+     */
+    static List<ShellResult> parse(List<String> commands, String output) {
+        List<ShellResult> results = new ArrayList<>(commands.size());
+        int start = 0;
+        for (String command : commands) {
+            int index = output.indexOf(EXIT_MARKER, start);
+            if (index < 0) {
+                results.add(new ShellResult(command, ShellResult.UNKNOWN_EXIT_CODE,
+                        output.substring(start), ""));
+                start = output.length();
+                continue;
+            }
+            int end = nextLine(output, index);
+            int exitCode;
+            try {
+                exitCode = Integer.parseInt(output.substring(index + EXIT_MARKER.length(), end)
+                        .trim());
+            } catch (NumberFormatException e) {
+                exitCode = ShellResult.UNKNOWN_EXIT_CODE;
+            }
+            int stderrStart = Math.min(output.length(), end + 1);
+            int stderrEnd = output.indexOf(STDERR_MARKER, stderrStart);
+            stderrEnd = stderrEnd < 0 ? output.length() : stderrEnd;
+            results.add(new ShellResult(command, exitCode, output.substring(start, index),
+                    output.substring(stderrStart, stderrEnd)));
+            start = Math.min(output.length(), nextLine(output, stderrEnd) + 1);
+        }
+        return results;
+    }
+
+    /**
+     * @return the index of the end of the line of the index
+     */
+    private static int nextLine(String output, int index) {
+        int end = output.indexOf('\n', index);
+        return end < 0 ? output.length() : end;
+    }
+}
@@ -0,0 +1,178 @@
+package com.ahasbini.test.permission_utils;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A {@link ShellExecutor} talking to a single long-lived shell over its streams instead of starting
+ * a shell per command. Each command is followed by sentinel markers echoed on stdout (along with the
+ * exit status) and on stderr, which separate the responses of commands sent one after the other.
+ * Several commands can be pipelined with {@link #executeAll(List)}, sending a bounded number of
+ * them before reading their responses. Stderr is drained on its own thread so that a command
+ * writing a lot to stderr can't block the shell while its stdout is being read.
+ */
+
+public class ShellSession implements ShellExecutor {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String END_OF_STREAM = new String("END_OF_STREAM");
+    private static final int MAX_IN_FLIGHT = 32;
+
+    private final Closeable process;
+    private final Writer stdin;
+    private final BufferedReader stdout;
+    private final LinkedBlockingQueue<String> stderrLines = new LinkedBlockingQueue<>();
+    private final String markerPrefix;
+    private long commands;
+    private boolean closed;
+
+    /**
+     * @param stdin   stream written to the shell's stdin
+     * @param stdout  stream read from the shell's stdout
+     * @param stderr  stream read from the shell's stderr
+     * @param process closed along with the session, can be <code>null</code>
+     */
+    public ShellSession(OutputStream stdin, InputStream stdout, final InputStream stderr,
+                        Closeable process) {
+        this.process = process;
+        this.stdin = new OutputStreamWriter(stdin, UTF_8);
+        this.stdout = new BufferedReader(new InputStreamReader(stdout, UTF_8));
+        this.markerPrefix = "__SHELL_SESSION_" + Long.toHexString(System.nanoTime()) + "_";
+
+        Thread stderrThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        stderrLines.offer(line);
+                    }
+                } catch (IOException e) {
+                    // Handled as the end of the stream
+                } finally {
+                    stderrLines.offer(END_OF_STREAM);
+                }
+            }
+        }, "ShellSession-stderr");
+        stderrThread.setDaemon(true);
+        stderrThread.start();
+    }
+
+    @Override
+    public ShellResult execute(String command) throws IOException {
+        return executeAll(Collections.singletonList(command)).get(0);
+    }
+
+    @Override
+    public synchronized List<ShellResult> executeAll(List<String> commands) throws IOException {
+        if (closed) {
+            throw new IOException("Shell session is closed");
+        }
+
+        List<String> markers = new ArrayList<>(commands.size());
+        List<ShellResult> results = new ArrayList<>(commands.size());
+        for (String command : commands) {
+            String marker = markerPrefix + (this.commands++) + "__";
+            markers.add(marker);
+            stdin.write(command);
+            stdin.write("\necho \"" + marker + " $?\"\necho \"" + marker + "\" >&2\n");
+
+            // Bounding the commands in flight so that the shell never blocks on a full stdout
+            // while this side is still writing to its stdin
+            if (markers.size() - results.size() >= MAX_IN_FLIGHT) {
+                stdin.flush();
+                int i = results.size();
+                results.add(readResult(commands.get(i), markers.get(i)));
+            }
+        }
+        stdin.flush();
+
+        for (int i = results.size(); i < commands.size(); i++) {
+            results.add(readResult(commands.get(i), markers.get(i)));
+        }
+        return results;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            stdin.write("exit\n");
+            stdin.flush();
+        } catch (IOException e) {
+            // Shell already gone
+        } finally {
+            stdin.close();
+            stdout.close();
+            if (process != null) {
+                process.close();
+            }
+        }
+    }
+
+    private ShellResult readResult(String command, String marker) throws IOException {
+        StringBuilder out = new StringBuilder();
+        int exitCode;
+        while (true) {
+            String line = stdout.readLine();
+            if (line == null) {
+                throw new IOException("Shell session ended while running: " + command);
+            }
+            int index = line.indexOf(marker);
+            if (index >= 0) {
+                // The output might not end with a new line, keeping what precedes the marker
+                out.append(line, 0, index);
+                exitCode = parseExitCode(line.substring(index + marker.length()).trim());
+                break;
+            }
+            out.append(line).append('\n');
+        }
+
+        StringBuilder err = new StringBuilder();
+        while (true) {
+            String line;
+            try {
+                line = stderrLines.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading stderr of: " + command);
+            }
+            //noinspection StringEquality
+            if (line == END_OF_STREAM) {
+                throw new IOException("Shell session ended while running: " + command);
+            }
+            int index = line.indexOf(marker);
+            if (index >= 0) {
+                err.append(line, 0, index);
+                break;
+            }
+            err.append(line).append('\n');
+        }
+
+        return new ShellResult(command, exitCode, out.toString(), err.toString());
+    }
+
+    private static int parseExitCode(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return ShellResult.UNKNOWN_EXIT_CODE;
+        }
+    }
+}
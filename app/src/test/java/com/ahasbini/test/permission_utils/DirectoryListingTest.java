@@ -0,0 +1,141 @@
+package com.ahasbini.test.permission_utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the paging and cancellation of {@link DirectoryListing}, running the background and main
+ * thread tasks in order on the test thread.
+ */
+public class DirectoryListingTest {
+
+    private static final int FILES = 250;
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<List<String>> pages = new ArrayList<>();
+    private final Executor queue = new Executor() {
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private File directory;
+    private boolean complete;
+    private DirectoryListing listing;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("listing", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        for (int i = 0; i < FILES; i++) {
+            assertTrue(new File(directory, "file" + i).createNewFile());
+        }
+        assertTrue(new File(directory, "dir").mkdir());
+        listing = new DirectoryListing(directory, new DirectoryListing.Listener() {
+
+            @Override
+            public void onPage(List<String> entries, boolean last) {
+                pages.add(entries);
+                complete = last;
+            }
+        }, queue, queue);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    @Test
+    public void listsEntriesInPagesWhenRequested() {
+        listing.requestPage();
+        // Only one page is read at a time
+        listing.requestPage();
+        runTasks();
+        assertEquals(1, pages.size());
+        assertEquals(DirectoryListing.PAGE_SIZE, pages.get(0).size());
+        assertFalse(complete);
+
+        while (!complete) {
+            listing.requestPage();
+            runTasks();
+        }
+        Set<String> entries = new HashSet<>();
+        for (List<String> page : pages) {
+            assertTrue(page.size() <= DirectoryListing.PAGE_SIZE);
+            entries.addAll(page);
+        }
+        assertEquals(FILES + 1, entries.size());
+        assertTrue(entries.contains("dir/"));
+        assertTrue(entries.contains("file0"));
+
+        listing.requestPage();
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void cancelStopsDelivery() {
+        listing.requestPage();
+        listing.cancel();
+        runTasks();
+        assertTrue(pages.isEmpty());
+
+        listing.requestPage();
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void cancelBeforeReadLeavesDirectoryClosed() {
+        listing.requestPage();
+        listing.cancel();
+        // The close posted by cancel() runs before the read
+        tasks.add(0, tasks.remove(1));
+        runTasks();
+        assertFalse(listing.isOpen());
+        assertTrue(pages.isEmpty());
+    }
+
+    @Test
+    public void cancelBetweenPagesClosesDirectory() {
+        listing.requestPage();
+        runTasks();
+        assertTrue(listing.isOpen());
+
+        listing.cancel();
+        runTasks();
+        assertFalse(listing.isOpen());
+    }
+
+    private void runTasks() {
+        while (!tasks.isEmpty()) {
+            tasks.remove(0).run();
+        }
+    }
+
+    private static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Unable to delete " + file);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.ContextWrapper;
+
+/**
+ * A context of the app on the local JVM whose permission checks are answered by a
+ * {@link FakePackageManager}. Relies on the default values returned by the Android stubs for the
+ * rest (see <code>testOptions</code> in <code>app/build.gradle</code>).
+ */
+
+class FakeContext extends ContextWrapper {
+
+    private final FakePackageManager packageManager;
+
+    FakeContext(FakePackageManager packageManager) {
+        super(null);
+        this.packageManager = packageManager;
+    }
+
+    @Override
+    public String getPackageName() {
+        return packageManager.getPackageName();
+    }
+
+    @Override
+    public int checkPermission(String permission, int pid, int uid) {
+        return packageManager.checkSelfPermission(permission);
+    }
+
+    @Override
+    public int checkSelfPermission(String permission) {
+        return packageManager.checkSelfPermission(permission);
+    }
+}
@@ -0,0 +1,119 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.pm.PackageManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-memory permission database of a single app, standing in for the package manager on the
+ * local JVM. It handles the <code>pm grant</code> and <code>pm revoke</code> commands sent to a
+ * {@link FakeShell} (failing them like <code>pm</code> does for other packages or permissions not
+ * requested by the app) and answers the checks of the app through {@link FakeContext}.
+ */
+
+class FakePackageManager implements FakeShell.CommandHandler, PermissionChecker {
+
+    private static final Pattern PM_COMMAND = Pattern.compile("^pm (grant|revoke) (\\S+) (\\S+)$");
+
+    private final String packageName;
+    private final Set<String> requestedPermissions;
+    private final Set<String> grantedPermissions = new HashSet<>();
+    private int commandCount;
+
+    /**
+     * @param packageName          package name of the app
+     * @param requestedPermissions permissions declared in the manifest of the app
+     */
+    FakePackageManager(String packageName, String... requestedPermissions) {
+        this.packageName = packageName;
+        this.requestedPermissions = new HashSet<>(Arrays.asList(requestedPermissions));
+    }
+
+    String getPackageName() {
+        return packageName;
+    }
+
+    /**
+     * @return a new session of a {@link FakeShell} backed by this package manager
+     */
+    ShellSession newShell() throws IOException {
+        return new FakeShell(this).newSession();
+    }
+
+    /**
+     * Runs the command outside of a shell, such as for setting the state of the permissions up.
+     *
+     * @throws IllegalStateException if the command failed, with its output
+     */
+    void execute(String command) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(output);
+        int exitCode = handle(command, stream, stream);
+        if (exitCode != 0) {
+            stream.flush();
+            throw new IllegalStateException(command + " exited with " + exitCode + ": " + output);
+        }
+    }
+
+    /**
+     * @return the number of <code>pm</code> commands which were run
+     */
+    synchronized int getCommandCount() {
+        return commandCount;
+    }
+
+    @Override
+    public synchronized int checkSelfPermission(String permission) {
+        return grantedPermissions.contains(permission)
+                ? PackageManager.PERMISSION_GRANTED : PackageManager.PERMISSION_DENIED;
+    }
+
+    /**
+     * Grants are applied while the command runs, hence there's nothing to wait for.
+     */
+    @Override
+    public boolean awaitGranted(String[] permissions) {
+        for (String permission : permissions) {
+            if (checkSelfPermission(permission) != PackageManager.PERMISSION_GRANTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized int handle(String command, PrintStream stdout, PrintStream stderr) {
+        Matcher matcher = PM_COMMAND.matcher(command);
+        if (!matcher.matches()) {
+            stderr.println("sh: " + command + ": not found");
+            return 127;
+        }
+        commandCount++;
+        String permission = matcher.group(3);
+        if (!packageName.equals(matcher.group(2))) {
+            stderr.println("Exception occurred while executing:");
+            stderr.println("java.lang.IllegalArgumentException: Unknown package: "
+                    + matcher.group(2));
+            return 255;
+        }
+        if (!requestedPermissions.contains(permission)) {
+            stderr.println("Exception occurred while executing:");
+            stderr.println("java.lang.SecurityException: Package " + packageName
+                    + " has not requested permission " + permission);
+            return 255;
+        }
+        if (matcher.group(1).equals("grant")) {
+            grantedPermissions.add(permission);
+        } else {
+            grantedPermissions.remove(permission);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,72 @@
+package com.ahasbini.test.permission_utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A fake shell running on a local thread, used to test {@link ShellSession} off-device. It
+ * understands the <code>echo</code> lines used for framing and <code>exit</code>, and hands every
+ * other line to a {@link CommandHandler}.
+ */
+
+class FakeShell {
+
+    private static final int PIPE_SIZE = 64 * 1024;
+    private static final Pattern ECHO = Pattern.compile("^echo \"([^\"]*)\"( >&2)?$");
+
+    interface CommandHandler {
+
+        /**
+         * @return the exit code of the command, writing its output to the streams
+         */
+        int handle(String command, PrintStream stdout, PrintStream stderr);
+    }
+
+    private final PipedOutputStream stdin = new PipedOutputStream();
+    private final PipedInputStream stdout = new PipedInputStream(PIPE_SIZE);
+    private final PipedInputStream stderr = new PipedInputStream(PIPE_SIZE);
+
+    FakeShell(final CommandHandler handler) throws IOException {
+        final PipedInputStream shellStdin = new PipedInputStream(stdin, PIPE_SIZE);
+        final PrintStream shellStdout = new PrintStream(new PipedOutputStream(stdout), true);
+        final PrintStream shellStderr = new PrintStream(new PipedOutputStream(stderr), true);
+
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(shellStdin));
+                int lastExitCode = 0;
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null && !line.equals("exit")) {
+                        Matcher echo = ECHO.matcher(line);
+                        if (echo.matches()) {
+                            String text = echo.group(1).replace("$?", String.valueOf(lastExitCode));
+                            (echo.group(2) == null ? shellStdout : shellStderr).println(text);
+                        } else {
+                            lastExitCode = handler.handle(line, shellStdout, shellStderr);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Session closed
+                } finally {
+                    shellStdout.close();
+                    shellStderr.close();
+                }
+            }
+        }, "FakeShell");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    ShellSession newSession() {
+        return new ShellSession(stdin, stdout, stderr, null);
+    }
+}
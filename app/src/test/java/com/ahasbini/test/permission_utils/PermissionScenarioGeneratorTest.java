@@ -0,0 +1,104 @@
+package com.ahasbini.test.permission_utils;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the coverage and size of the scenarios generated by {@link PermissionScenarioGenerator}.
+ */
+public class PermissionScenarioGeneratorTest {
+
+    @Test
+    public void pairwiseCoversAllPairs() {
+        for (int parameters = 2; parameters <= 8; parameters++) {
+            List<int[]> scenarios = PermissionScenarioGenerator.generate(parameters, 3, 2);
+            assertCovers(scenarios, parameters, 3, 2);
+            assertTrue(scenarios.size() < PermissionScenarioGenerator
+                    .getFullMatrixSize(parameters, 3) || parameters == 2);
+        }
+        // At most 10 scenarios cover the pairs of 4 parameters, instead of 81
+        assertTrue(PermissionScenarioGenerator.generate(4, 3, 2).size() <= 10);
+    }
+
+    @Test
+    public void threeWiseCoversAllTriples() {
+        List<int[]> scenarios = PermissionScenarioGenerator.generate(6, 3, 3);
+        assertCovers(scenarios, 6, 3, 3);
+        assertTrue(scenarios.size() < PermissionScenarioGenerator.getFullMatrixSize(6, 3));
+    }
+
+    @Test
+    public void strengthOfAllParametersGeneratesFullMatrix() {
+        List<int[]> scenarios = PermissionScenarioGenerator.generate(3, 3, 5);
+        assertEquals(27, scenarios.size());
+        assertCovers(scenarios, 3, 3, 3);
+        assertEquals(1, PermissionScenarioGenerator.generate(0, 3, 2).size());
+    }
+
+    @Test
+    public void orderStartsWithFirstValuesAndKeepsScenarios() {
+        List<int[]> scenarios = PermissionScenarioGenerator.generate(5, 3, 2);
+        List<int[]> ordered = PermissionScenarioGenerator.order(scenarios);
+        assertEquals(scenarios.size(), ordered.size());
+        assertTrue(ordered.containsAll(scenarios));
+        int[] firstValues = new int[5];
+        for (int[] scenario : scenarios) {
+            assertTrue(distance(firstValues, ordered.get(0)) <= distance(firstValues, scenario));
+        }
+        for (int i = 1; i < ordered.size(); i++) {
+            // Each scenario is the closest to the previous one among the ones left
+            for (int j = i; j < ordered.size(); j++) {
+                assertTrue(distance(ordered.get(i - 1), ordered.get(i))
+                        <= distance(ordered.get(i - 1), ordered.get(j)));
+            }
+        }
+    }
+
+    private static void assertCovers(List<int[]> scenarios, int parameters, int values,
+                                     int strength) {
+        Set<String> covered = new HashSet<>();
+        for (int[] scenario : scenarios) {
+            assertEquals(parameters, scenario.length);
+            for (int value : scenario) {
+                assertTrue(value >= 0 && value < values);
+            }
+            addCombinations(covered, scenario, strength, 0, "");
+        }
+        long expected = 1;
+        for (int i = 0; i < strength; i++) {
+            expected = expected * (parameters - i) / (i + 1);
+        }
+        for (int i = 0; i < strength; i++) {
+            expected *= values;
+        }
+        assertEquals(expected, covered.size());
+    }
+
+    private static void addCombinations(Set<String> covered, int[] scenario, int size, int start,
+                                        String prefix) {
+        if (size == 0) {
+            covered.add(prefix);
+            return;
+        }
+        for (int i = start; i < scenario.length; i++) {
+            addCombinations(covered, scenario, size - 1, i + 1,
+                    prefix + i + "=" + scenario[i] + " ");
+        }
+    }
+
+    private static int distance(int[] a, int[] b) {
+        int distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                distance++;
+            }
+        }
+        return distance;
+    }
+}
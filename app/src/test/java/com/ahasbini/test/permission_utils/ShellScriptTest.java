@@ -0,0 +1,65 @@
+package com.ahasbini.test.permission_utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the scripts of {@link ShellScript} against the local shell, started the same way
+ * <code>UiDevice.executeShellCommand(String)</code> starts it (splitting the command on
+ * whitespaces and reading stdout only).
+ */
+public class ShellScriptTest {
+
+    @Test
+    public void commandsGetTheirArgumentsOnly() throws Exception {
+        List<String> commands = Arrays.asList("echo a  b", "echo c");
+        List<ShellResult> results = run(commands);
+
+        assertEquals(2, results.size());
+        assertEquals("a b\n", results.get(0).getStdout());
+        assertEquals(0, results.get(0).getExitCode());
+        assertEquals("c\n", results.get(1).getStdout());
+        assertEquals("echo c", results.get(1).getCommand());
+    }
+
+    @Test
+    public void stderrIsSeparatedWithExitCode() throws Exception {
+        List<String> commands = Arrays.asList("cat /no/such/permission_utils/file",
+                "sh -c 'echo out;echo err>&2'", "echo after");
+        List<ShellResult> results = run(commands);
+
+        assertEquals("", results.get(0).getStdout());
+        assertTrue(results.get(0).getStderr(),
+                results.get(0).getStderr().contains("/no/such/permission_utils/file"));
+        assertTrue(results.get(0).getExitCode() > 0);
+        assertEquals("out\n", results.get(1).getStdout());
+        assertEquals("err\n", results.get(1).getStderr());
+        assertEquals("after\n", results.get(2).getStdout());
+        assertEquals("", results.get(2).getStderr());
+        assertEquals(0, results.get(2).getExitCode());
+    }
+
+    private static List<ShellResult> run(List<String> commands) throws IOException,
+            InterruptedException {
+        Process process = Runtime.getRuntime().exec("sh -c " + ShellScript.build(commands,
+                System.getProperty("java.io.tmpdir")));
+        process.getOutputStream().close();
+        InputStream stdout = process.getInputStream();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = stdout.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        process.waitFor();
+        return ShellScript.parse(commands, output.toString("UTF-8"));
+    }
+}
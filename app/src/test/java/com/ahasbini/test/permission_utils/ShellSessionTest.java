@@ -0,0 +1,107 @@
+package com.ahasbini.test.permission_utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the framing of the responses of {@link ShellSession} against a {@link FakeShell}.
+ */
+public class ShellSessionTest {
+
+    private ShellSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        session = new FakeShell(new FakeShell.CommandHandler() {
+
+            @Override
+            public int handle(String command, PrintStream stdout, PrintStream stderr) {
+                if (command.startsWith("print ")) {
+                    stdout.println(command.substring("print ".length()));
+                    return 0;
+                }
+                if (command.startsWith("printn ")) {
+                    stdout.print(command.substring("printn ".length()));
+                    return 0;
+                }
+                if (command.startsWith("lines ")) {
+                    int count = Integer.parseInt(command.substring("lines ".length()));
+                    for (int i = 0; i < count; i++) {
+                        stdout.println("line " + i);
+                    }
+                    return 0;
+                }
+                stderr.println("unknown command: " + command);
+                return 127;
+            }
+        }).newSession();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.close();
+    }
+
+    @Test
+    public void executeReturnsOutputAndExitCode() throws Exception {
+        ShellResult result = session.execute("print hello");
+        assertEquals("hello\n", result.getStdout());
+        assertEquals("", result.getStderr());
+        assertEquals(0, result.getExitCode());
+        assertTrue(result.isSuccessful());
+    }
+
+    @Test
+    public void executeKeepsOutputWithoutNewLine() throws Exception {
+        assertEquals("no new line", session.execute("printn no new line").getStdout());
+        assertEquals("next\n", session.execute("print next").getStdout());
+    }
+
+    @Test
+    public void executeReturnsStderrAndFailure() throws Exception {
+        ShellResult result = session.execute("pm grant");
+        assertEquals("", result.getStdout());
+        assertEquals("unknown command: pm grant\n", result.getStderr());
+        assertEquals(127, result.getExitCode());
+        assertFalse(result.isSuccessful());
+    }
+
+    @Test
+    public void executeAllSeparatesPipelinedResponses() throws Exception {
+        List<String> commands = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            commands.add(i % 10 == 0 ? "fail " + i : "lines " + (i % 5));
+        }
+
+        List<ShellResult> results = session.executeAll(commands);
+
+        assertEquals(commands.size(), results.size());
+        for (int i = 0; i < commands.size(); i++) {
+            ShellResult result = results.get(i);
+            assertEquals(commands.get(i), result.getCommand());
+            if (i % 10 == 0) {
+                assertEquals(127, result.getExitCode());
+                assertEquals("unknown command: fail " + i + "\n", result.getStderr());
+            } else {
+                assertEquals(0, result.getExitCode());
+                assertEquals(i % 5, result.getStdout().split("\n", -1).length - 1);
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void executeAfterCloseFails() throws Exception {
+        session.close();
+        session.execute("print closed");
+    }
+}
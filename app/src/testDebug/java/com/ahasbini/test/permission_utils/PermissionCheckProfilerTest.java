@@ -0,0 +1,42 @@
+package com.ahasbini.test.permission_utils;
+
+import android.Manifest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the call sites folded by {@link PermissionCheckProfiler}, which must only keep the frames
+ * of the app and not those of the checks going through the library.
+ */
+public class PermissionCheckProfilerTest {
+
+    private static final String CAMERA = Manifest.permission.CAMERA;
+
+    @Test
+    public void foldedSiteStartsAtAppFrames() {
+        int slot = PermissionOverrideStore.getInstance().intern(CAMERA);
+        StackTraceElement[] stack = {
+                frame(PermissionCheckProfiler.class.getName(), "onCheck"),
+                frame(PermissionLookup.class.getName(), "checkPermission"),
+                frame(CustomBuildContext.class.getName(), "check"),
+                frame(PermissionCheckHooks.class.getName(), "checkSelfPermission"),
+                frame("com.example.CameraFragment", "updateButtons"),
+                frame("com.example.CameraFragment", "onResume"),
+                frame("android.app.Fragment", "performResume"),
+                frame("com.example.MainActivity", "onResume"),
+                frame("com.example.BaseActivity", "onResume"),
+                frame("com.example.App", "onActivityResumed")
+        };
+
+        assertEquals("com.example.BaseActivity.onResume:1;com.example.MainActivity.onResume:1;"
+                        + "com.example.CameraFragment.onResume:1;"
+                        + "com.example.CameraFragment.updateButtons:1;" + CAMERA,
+                PermissionCheckProfiler.foldStack(stack, slot));
+    }
+
+    private static StackTraceElement frame(String className, String methodName) {
+        return new StackTraceElement(className, methodName, null, 1);
+    }
+}
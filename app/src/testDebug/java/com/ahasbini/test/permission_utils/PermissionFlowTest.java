@@ -0,0 +1,231 @@
+package com.ahasbini.test.permission_utils;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the permission flow of {@link CustomBuildContext} and {@link PermissionRequestDispatcher}
+ * on the local JVM, with a {@link FakePackageManager} instead of the device. The checks go through
+ * {@link CustomBuildContext#check(int, String, int, int, android.content.Context,
+ * PermissionSession, AtomicLong)} with a {@link FakeContext} as the base context, as the wrapper
+ * itself can't delegate to its base context with the Android stubs.
+ */
+public class PermissionFlowTest {
+
+    private static final String PACKAGE_NAME = "com.ahasbini.test.permission_utils";
+    private static final String STORAGE = Manifest.permission.READ_EXTERNAL_STORAGE;
+    private static final String CAMERA = Manifest.permission.CAMERA;
+
+    private final PermissionOverrideStore store = PermissionOverrideStore.getInstance();
+    private final List<Runnable> mainLooper = new ArrayList<>();
+    private final List<String[]> grants = new ArrayList<>();
+    private final AtomicLong ownerChecks = new AtomicLong();
+
+    private FakePackageManager packageManager;
+    private ShellSession shell;
+    private FakeContext context;
+    private PermissionRequestDispatcher dispatcher;
+    private boolean lastGrantSucceeded;
+
+    @Before
+    public void setUp() throws Exception {
+        store.clearAll();
+        packageManager = new FakePackageManager(PACKAGE_NAME, STORAGE);
+        shell = packageManager.newShell();
+        context = new FakeContext(packageManager);
+        dispatcher = new PermissionRequestDispatcher(PACKAGE_NAME, shell, packageManager,
+                new Executor() {
+
+                    @Override
+                    public void execute(Runnable command) {
+                        mainLooper.add(command);
+                    }
+                }, new PermissionRequestDispatcher.GrantCallback() {
+
+                    @Override
+                    public void onGranted(String[] permissions, long elapsed, boolean granted) {
+                        grants.add(permissions);
+                        lastGrantSucceeded = granted;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        shell.close();
+        store.clearAll();
+        PermissionTraceRecorder.getInstance().stop();
+    }
+
+    @Test
+    public void checkSelfPermissionPrefersOverrides() throws Exception {
+        shell.execute("pm grant " + PACKAGE_NAME + " " + STORAGE);
+        store.setOverride(STORAGE, PackageManager.PERMISSION_DENIED, false);
+        assertEquals(PackageManager.PERMISSION_DENIED, checkSelfPermission(STORAGE));
+
+        store.clear(STORAGE);
+        assertEquals(PackageManager.PERMISSION_GRANTED, checkSelfPermission(STORAGE));
+    }
+
+    @Test
+    public void checkSelfPermissionFollowsPmCommands() throws Exception {
+        assertEquals(PackageManager.PERMISSION_DENIED, checkSelfPermission(STORAGE));
+        assertTrue(shell.execute("pm grant " + PACKAGE_NAME + " " + STORAGE).isSuccessful());
+        assertEquals(PackageManager.PERMISSION_GRANTED, checkSelfPermission(STORAGE));
+        assertTrue(shell.execute("pm revoke " + PACKAGE_NAME + " " + STORAGE).isSuccessful());
+        assertEquals(PackageManager.PERMISSION_DENIED, checkSelfPermission(STORAGE));
+    }
+
+    @Test
+    public void instrumentedChecksUseOverridesWithoutWrapper() throws Exception {
+        shell.execute("pm grant " + PACKAGE_NAME + " " + STORAGE);
+        assertEquals(PackageManager.PERMISSION_GRANTED,
+                PermissionCheckHooks.checkSelfPermission(context, STORAGE));
+        store.setOverride(STORAGE, PackageManager.PERMISSION_DENIED, false);
+        assertEquals(PackageManager.PERMISSION_DENIED,
+                PermissionCheckHooks.checkSelfPermission(context, STORAGE));
+    }
+
+    @Test
+    public void pmFailsForPermissionsNotRequested() throws Exception {
+        ShellResult result = shell.execute("pm grant " + PACKAGE_NAME + " " + CAMERA);
+        assertFalse(result.isSuccessful());
+        assertTrue(result.getStderr().contains("has not requested permission"));
+        assertEquals(PackageManager.PERMISSION_DENIED, checkSelfPermission(CAMERA));
+    }
+
+    @Test
+    public void dispatchGrantsMergedPermissionsOnceAndDeliversOnMainLooper() throws Exception {
+        store.setOverride(STORAGE, PackageManager.PERMISSION_DENIED, false);
+        FakeRequest first = new FakeRequest(STORAGE);
+        FakeRequest second = new FakeRequest(STORAGE);
+
+        assertEquals(2, dispatcher.dispatch(Arrays.asList(first, second)));
+        assertEquals(1, packageManager.getCommandCount());
+        assertEquals(1, grants.size());
+        assertTrue(lastGrantSucceeded);
+        assertEquals(PackageManager.PERMISSION_GRANTED, checkSelfPermission(STORAGE));
+
+        // Results are only delivered once the main looper runs
+        assertNull(first.grantResults);
+        drainMainLooper();
+        assertArrayEquals(new int[]{PackageManager.PERMISSION_GRANTED}, first.grantResults);
+        assertArrayEquals(new int[]{PackageManager.PERMISSION_GRANTED}, second.grantResults);
+    }
+
+    @Test
+    public void dispatchSkipsGrantedPermissions() throws Exception {
+        shell.execute("pm grant " + PACKAGE_NAME + " " + STORAGE);
+        FakeRequest request = new FakeRequest(STORAGE);
+
+        assertEquals(1, dispatcher.dispatch(Arrays.asList(request)));
+        assertEquals(1, packageManager.getCommandCount());
+        assertTrue(grants.isEmpty());
+        drainMainLooper();
+        assertArrayEquals(new int[]{PackageManager.PERMISSION_GRANTED}, request.grantResults);
+    }
+
+    @Test
+    public void dispatchReportsPermissionsWhichCouldNotBeGranted() throws Exception {
+        dispatcher.dispatch(Arrays.asList(new FakeRequest(CAMERA)));
+        assertEquals(1, grants.size());
+        assertFalse(lastGrantSucceeded);
+    }
+
+    @Test
+    public void replayAnswersChecksWithRecordedResults() throws Exception {
+        PermissionTraceRecorder traceRecorder = PermissionTraceRecorder.getInstance();
+        traceRecorder.startRecording();
+        shell.execute("pm grant " + PACKAGE_NAME + " " + STORAGE);
+        checkSelfPermission(STORAGE);
+        checkSelfPermission(CAMERA);
+        File file = File.createTempFile("permission", ".trace");
+        file.deleteOnExit();
+        traceRecorder.stop().write(file);
+
+        // The package manager no longer matters while replaying
+        shell.execute("pm revoke " + PACKAGE_NAME + " " + STORAGE);
+        traceRecorder.startReplay(PermissionTrace.read(file));
+        assertEquals(PackageManager.PERMISSION_GRANTED, checkSelfPermission(STORAGE));
+        assertEquals(PackageManager.PERMISSION_DENIED, checkSelfPermission(CAMERA));
+        assertNull(traceRecorder.getDivergence());
+    }
+
+    @Test
+    public void replayReportsDivergence() throws Exception {
+        PermissionTraceRecorder traceRecorder = PermissionTraceRecorder.getInstance();
+        traceRecorder.startRecording();
+        checkSelfPermission(STORAGE);
+        PermissionTrace recorded = traceRecorder.stop();
+
+        traceRecorder.startReplay(recorded);
+        checkSelfPermission(CAMERA);
+        String divergence = traceRecorder.getDivergence();
+        assertNotNull(divergence);
+        assertTrue(divergence.contains("- #0 checkSelfPermission [" + STORAGE + "]"));
+        assertTrue(divergence.contains("+ #0 checkSelfPermission [" + CAMERA + "]"));
+    }
+
+    /**
+     * Checks the permission through the path shared by {@link CustomBuildContext} and
+     * {@link PermissionCheckHooks}.
+     */
+    private int checkSelfPermission(String permission) {
+        return CustomBuildContext.check(PermissionTrace.TYPE_CHECK_SELF_PERMISSION, permission,
+                0, 0, context, PermissionSession.getDefault(), ownerChecks);
+    }
+
+    private void drainMainLooper() {
+        while (!mainLooper.isEmpty()) {
+            mainLooper.remove(0).run();
+        }
+    }
+
+    /**
+     * A request removing its overrides from the default store like the delegate does.
+     */
+    private class FakeRequest implements PermissionRequestDispatcher.Request {
+
+        final String[] permissions;
+        int[] grantResults;
+
+        FakeRequest(String... permissions) {
+            this.permissions = permissions;
+        }
+
+        @Override
+        public String[] getPermissions() {
+            return permissions;
+        }
+
+        @Override
+        public void removeOverrides() {
+            for (String permission : permissions) {
+                store.setPermissionResult(permission, PackageManager.PERMISSION_GRANTED);
+            }
+        }
+
+        @Override
+        public void deliver(int[] grantResults) {
+            this.grantResults = grantResults;
+        }
+    }
+}
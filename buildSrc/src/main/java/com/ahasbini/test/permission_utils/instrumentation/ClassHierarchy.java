@@ -0,0 +1,107 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import org.objectweb.asm.ClassReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The super classes of the classes of the app, its libraries and the Android platform, read from
+ * the headers of the class files, used by {@link PermissionCheckRewriter} to tell whether the
+ * receiver of a call is a <code>Context</code> without loading the classes.
+ */
+
+final class ClassHierarchy {
+
+    private static final String CONTEXT = "android/content/Context";
+
+    private final Map<String, String> superClasses = new HashMap<>();
+    private final Map<String, Boolean> contexts = new HashMap<>();
+
+    void addClass(byte[] bytes) {
+        ClassReader reader;
+        try {
+            reader = new ClassReader(bytes);
+        } catch (IllegalArgumentException e) {
+            // Class files newer than ASM 5 supports, such as module-info.class
+            return;
+        }
+        superClasses.put(reader.getClassName(), reader.getSuperName());
+    }
+
+    void addDirectory(File directory) throws IOException {
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                if (file.toString().endsWith(".class")) {
+                    addClass(Files.readAllBytes(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param prefix only the classes whose entries start with the prefix are read
+     */
+    void addJar(File jar, String prefix) throws IOException {
+        ZipFile zip = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().startsWith(prefix) && entry.getName().endsWith(".class")) {
+                    InputStream input = zip.getInputStream(entry);
+                    try {
+                        addClass(readAll(input));
+                    } finally {
+                        input.close();
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * @param name internal name of the class
+     * @return <code>true</code> if the class is or extends <code>android.content.Context</code>
+     */
+    boolean isContext(String name) {
+        Boolean context = contexts.get(name);
+        if (context == null) {
+            String current = name;
+            while (current != null && !current.equals(CONTEXT)) {
+                current = superClasses.get(current);
+            }
+            context = current != null;
+            contexts.put(name, context);
+        }
+        return context;
+    }
+
+    static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,77 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Rewrites the calls to <code>ContextCompat.checkSelfPermission(Context, String)</code>, the same
+ * method through <code>ActivityCompat</code>, and <code>checkSelfPermission(String)</code> on any
+ * <code>Context</code> to the static <code>checkSelfPermission(Context, String)</code> of the hook
+ * class. Both take the same operands from the stack, hence the frames and the maximum stack size
+ * of the methods are left untouched. Calls through <code>super</code> aren't rewritten.
+ */
+
+final class PermissionCheckRewriter extends ClassVisitor {
+
+    static final String METHOD = "checkSelfPermission";
+    static final String HOOK_DESCRIPTOR = "(Landroid/content/Context;Ljava/lang/String;)I";
+    private static final String CONTEXT_DESCRIPTOR = "(Ljava/lang/String;)I";
+    private static final Set<String> COMPAT_CLASSES = new HashSet<>(Arrays.asList(
+            "android/support/v4/content/ContextCompat", "android/support/v4/app/ActivityCompat"));
+
+    private final ClassHierarchy hierarchy;
+    private final String hookClass;
+    private int rewritten;
+
+    /**
+     * @param hookClass internal name of the hook class
+     */
+    PermissionCheckRewriter(ClassVisitor next, ClassHierarchy hierarchy, String hookClass) {
+        super(Opcodes.ASM5, next);
+        this.hierarchy = hierarchy;
+        this.hookClass = hookClass;
+    }
+
+    /**
+     * @return the number of calls rewritten in the visited class
+     */
+    int getRewritten() {
+        return rewritten;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                     String[] exceptions) {
+        return new MethodVisitor(Opcodes.ASM5,
+                super.visitMethod(access, name, descriptor, signature, exceptions)) {
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+                                        boolean isInterface) {
+                if (isPermissionCheck(opcode, owner, name, descriptor)) {
+                    rewritten++;
+                    super.visitMethodInsn(Opcodes.INVOKESTATIC, hookClass, METHOD,
+                            HOOK_DESCRIPTOR, false);
+                } else {
+                    super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                }
+            }
+        };
+    }
+
+    private boolean isPermissionCheck(int opcode, String owner, String name, String descriptor) {
+        if (!name.equals(METHOD)) {
+            return false;
+        }
+        if (opcode == Opcodes.INVOKESTATIC) {
+            return descriptor.equals(HOOK_DESCRIPTOR) && COMPAT_CLASSES.contains(owner);
+        }
+        return opcode == Opcodes.INVOKEVIRTUAL && descriptor.equals(CONTEXT_DESCRIPTOR)
+                && hierarchy.isContext(owner);
+    }
+}
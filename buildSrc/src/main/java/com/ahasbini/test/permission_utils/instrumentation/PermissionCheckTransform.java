@@ -0,0 +1,231 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.Format;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Transform;
+import com.android.build.api.transform.TransformException;
+import com.android.build.api.transform.TransformInput;
+import com.android.build.api.transform.TransformInvocation;
+import com.android.build.api.transform.TransformOutputProvider;
+import com.android.build.gradle.AppExtension;
+import com.android.build.gradle.internal.pipeline.TransformManager;
+
+import org.gradle.api.logging.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A {@link Transform} which runs {@link PermissionCheckRewriter} over the classes of the app and
+ * of all its libraries in the variants configured by {@link PermissionInstrumentationExtension},
+ * copying the classes of the other variants as they are. The class hierarchy is read from all the
+ * inputs and the platform classes first, then every class is rewritten, keeping its original bytes
+ * when it doesn't check any permission.
+ */
+
+class PermissionCheckTransform extends Transform {
+
+    private final AppExtension android;
+    private final PermissionInstrumentationExtension extension;
+    private final Logger logger;
+
+    PermissionCheckTransform(AppExtension android, PermissionInstrumentationExtension extension,
+                             Logger logger) {
+        this.android = android;
+        this.extension = extension;
+        this.logger = logger;
+    }
+
+    @Override
+    public String getName() {
+        return "permissionChecks";
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        return TransformManager.CONTENT_CLASS;
+    }
+
+    @Override
+    public Set<? super QualifiedContent.Scope> getScopes() {
+        return TransformManager.SCOPE_FULL_PROJECT;
+    }
+
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("hookClass", extension.getHookClass());
+        parameters.put("variants", extension.getVariants().toString());
+        return parameters;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        return false;
+    }
+
+    @Override
+    public void transform(TransformInvocation invocation)
+            throws TransformException, InterruptedException, IOException {
+        String variant = invocation.getContext().getVariantName();
+        // The transform is shared by the variants, hence the state of the run is kept local
+        Run run = null;
+        if (extension.getVariants().contains(variant)) {
+            ClassHierarchy hierarchy = new ClassHierarchy();
+            for (File file : android.getBootClasspath()) {
+                hierarchy.addJar(file, "android/");
+            }
+            for (TransformInput input : invocation.getInputs()) {
+                for (DirectoryInput directory : input.getDirectoryInputs()) {
+                    hierarchy.addDirectory(directory.getFile());
+                }
+                for (JarInput jar : input.getJarInputs()) {
+                    hierarchy.addJar(jar.getFile(), "");
+                }
+            }
+            run = new Run(hierarchy, extension.getHookClass().replace('.', '/'));
+        }
+
+        TransformOutputProvider outputProvider = invocation.getOutputProvider();
+        outputProvider.deleteAll();
+        for (TransformInput input : invocation.getInputs()) {
+            for (DirectoryInput directory : input.getDirectoryInputs()) {
+                File output = outputProvider.getContentLocation(directory.getName(),
+                        directory.getContentTypes(), directory.getScopes(), Format.DIRECTORY);
+                transformDirectory(directory.getFile(), output, run);
+            }
+            for (JarInput jar : input.getJarInputs()) {
+                File output = outputProvider.getContentLocation(jar.getName(),
+                        jar.getContentTypes(), jar.getScopes(), Format.JAR);
+                transformJar(jar.getFile(), output, run);
+            }
+        }
+        if (run != null) {
+            logger.info("{}: rewrote {} permission checks in {} classes of {}", getName(),
+                    run.rewrittenCalls, run.rewrittenClasses, variant);
+        }
+    }
+
+    /**
+     * @param run the state of the run, <code>null</code> to copy the classes as they are
+     */
+    private static void transformDirectory(final File input, final File output, final Run run)
+            throws IOException {
+        Files.walkFileTree(input.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                    throws IOException {
+                Path target = output.toPath().resolve(input.toPath().relativize(file));
+                Files.createDirectories(target.getParent());
+                if (run != null && file.toString().endsWith(".class")) {
+                    Files.write(target, run.transformClass(Files.readAllBytes(file)));
+                } else {
+                    Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param run the state of the run, <code>null</code> to copy the classes as they are
+     */
+    private static void transformJar(File input, File output, Run run) throws IOException {
+        if (run == null) {
+            Files.createDirectories(output.getParentFile().toPath());
+            Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Files.createDirectories(output.getParentFile().toPath());
+        ZipFile zip = new ZipFile(input);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(output));
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                InputStream in = zip.getInputStream(entry);
+                byte[] bytes;
+                try {
+                    bytes = ClassHierarchy.readAll(in);
+                } finally {
+                    in.close();
+                }
+                if (entry.getName().endsWith(".class")) {
+                    bytes = run.transformClass(bytes);
+                }
+                out.putNextEntry(new ZipEntry(entry.getName()));
+                out.write(bytes);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+            zip.close();
+        }
+    }
+
+    /**
+     * The hierarchy, hook class and counters of a run of the transform over a variant.
+     */
+    static final class Run {
+
+        private final ClassHierarchy hierarchy;
+        private final String hookClass;
+        private int rewrittenCalls;
+        private int rewrittenClasses;
+
+        /**
+         * @param hookClass internal name of the hook class
+         */
+        Run(ClassHierarchy hierarchy, String hookClass) {
+            this.hierarchy = hierarchy;
+            this.hookClass = hookClass;
+        }
+
+        /**
+         * @return the rewritten class, or the same bytes if there was nothing to rewrite
+         */
+        byte[] transformClass(byte[] bytes) {
+            ClassReader reader;
+            try {
+                reader = new ClassReader(bytes);
+            } catch (IllegalArgumentException e) {
+                // Class files newer than ASM 5 supports, such as module-info.class
+                return bytes;
+            }
+            if (reader.getClassName().equals(hookClass)) {
+                // The hook checks the permissions of the contexts itself
+                return bytes;
+            }
+            ClassWriter writer = new ClassWriter(reader, 0);
+            PermissionCheckRewriter rewriter = new PermissionCheckRewriter(writer, hierarchy,
+                    hookClass);
+            reader.accept(rewriter, 0);
+            if (rewriter.getRewritten() == 0) {
+                return bytes;
+            }
+            rewrittenCalls += rewriter.getRewritten();
+            rewrittenClasses++;
+            return writer.toByteArray();
+        }
+    }
+}
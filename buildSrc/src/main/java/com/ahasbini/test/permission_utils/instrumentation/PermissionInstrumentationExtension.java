@@ -0,0 +1,40 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The <code>permissionInstrumentation</code> block of the app, configuring
+ * {@link PermissionInstrumentationPlugin}.
+ */
+
+public class PermissionInstrumentationExtension {
+
+    private String hookClass = "com.ahasbini.test.permission_utils.PermissionCheckHooks";
+    private List<String> variants = new ArrayList<>(Collections.singletonList("debug"));
+
+    /**
+     * @return the class whose static <code>checkSelfPermission(Context, String)</code> replaces
+     * the rewritten calls
+     */
+    public String getHookClass() {
+        return hookClass;
+    }
+
+    public void setHookClass(String hookClass) {
+        this.hookClass = hookClass;
+    }
+
+    /**
+     * @return the names of the variants whose classes are rewritten, the others (including the
+     * test APKs, whose checks must stay real) are left as they are
+     */
+    public List<String> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<String> variants) {
+        this.variants = new ArrayList<>(variants);
+    }
+}
@@ -0,0 +1,30 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import com.android.build.gradle.AppExtension;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.Plugin;
+import org.gradle.api.Project;
+
+/**
+ * The <code>com.ahasbini.permission-instrumentation</code> plugin, applied after
+ * <code>com.android.application</code>. It registers {@link PermissionCheckTransform} to rewrite
+ * the permission checks of the app and its libraries to the hook class of the app, so that the
+ * overrides of the tests cover every activity without wrapping their contexts.
+ */
+
+public class PermissionInstrumentationPlugin implements Plugin<Project> {
+
+    @Override
+    public void apply(Project project) {
+        PermissionInstrumentationExtension extension = project.getExtensions()
+                .create("permissionInstrumentation", PermissionInstrumentationExtension.class);
+        AppExtension android = project.getExtensions().findByType(AppExtension.class);
+        if (android == null) {
+            throw new GradleException("com.ahasbini.permission-instrumentation must be applied "
+                    + "after com.android.application");
+        }
+        android.registerTransform(new PermissionCheckTransform(android, extension,
+                project.getLogger()));
+    }
+}
@@ -0,0 +1,150 @@
+package com.ahasbini.test.permission_utils.instrumentation;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests the calls rewritten by {@link PermissionCheckRewriter} through
+ * {@link PermissionCheckTransform.Run}, feeding it class files generated with ASM against a
+ * hierarchy of stubs of the Android classes.
+ */
+public class PermissionCheckRewriterTest {
+
+    private static final String HOOK_CLASS =
+            "com/ahasbini/test/permission_utils/PermissionCheckHooks";
+    private static final String CALLER_CLASS = "com/example/Caller";
+    private static final String CONTEXT_DESCRIPTOR = "(Ljava/lang/String;)I";
+    private static final String HOOK_CALL = "INVOKESTATIC " + HOOK_CLASS + "."
+            + PermissionCheckRewriter.METHOD + PermissionCheckRewriter.HOOK_DESCRIPTOR;
+
+    private PermissionCheckTransform.Run run;
+
+    @Before
+    public void setUp() {
+        ClassHierarchy hierarchy = new ClassHierarchy();
+        hierarchy.addClass(stubClass("android/content/Context", "java/lang/Object"));
+        hierarchy.addClass(stubClass("android/content/ContextWrapper", "android/content/Context"));
+        hierarchy.addClass(stubClass("android/app/Activity", "android/content/ContextWrapper"));
+        hierarchy.addClass(stubClass("com/example/MainActivity", "android/app/Activity"));
+        hierarchy.addClass(stubClass("com/example/Checker", "java/lang/Object"));
+        run = new PermissionCheckTransform.Run(hierarchy, HOOK_CLASS);
+    }
+
+    @Test
+    public void compatAndContextChecksAreRewritten() {
+        byte[] caller = callerClass(CALLER_CLASS,
+                Opcodes.INVOKESTATIC, "android/support/v4/content/ContextCompat",
+                PermissionCheckRewriter.HOOK_DESCRIPTOR,
+                Opcodes.INVOKESTATIC, "android/support/v4/app/ActivityCompat",
+                PermissionCheckRewriter.HOOK_DESCRIPTOR,
+                Opcodes.INVOKEVIRTUAL, "android/content/Context", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKEVIRTUAL, "com/example/MainActivity", CONTEXT_DESCRIPTOR);
+
+        assertEquals(Arrays.asList(HOOK_CALL, HOOK_CALL, HOOK_CALL, HOOK_CALL),
+                getCalls(run.transformClass(caller)));
+    }
+
+    @Test
+    public void superAndOtherReceiversAreLeftAlone() {
+        byte[] caller = callerClass(CALLER_CLASS,
+                Opcodes.INVOKESPECIAL, "android/app/Activity", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKEVIRTUAL, "com/example/Checker", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKEVIRTUAL, "com/example/Unknown", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKESTATIC, "com/example/Checker",
+                PermissionCheckRewriter.HOOK_DESCRIPTOR);
+
+        assertSame(caller, run.transformClass(caller));
+    }
+
+    @Test
+    public void hookClassIsLeftAlone() {
+        byte[] hook = callerClass(HOOK_CLASS,
+                Opcodes.INVOKEVIRTUAL, "android/content/Context", CONTEXT_DESCRIPTOR);
+
+        assertSame(hook, run.transformClass(hook));
+    }
+
+    @Test
+    public void onlyTheChecksAreRewritten() {
+        byte[] caller = callerClass(CALLER_CLASS,
+                Opcodes.INVOKEVIRTUAL, "com/example/Checker", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKEVIRTUAL, "com/example/MainActivity", CONTEXT_DESCRIPTOR,
+                Opcodes.INVOKESPECIAL, "android/app/Activity", CONTEXT_DESCRIPTOR);
+
+        assertEquals(Arrays.asList(
+                "INVOKEVIRTUAL com/example/Checker.checkSelfPermission" + CONTEXT_DESCRIPTOR,
+                HOOK_CALL,
+                "INVOKESPECIAL android/app/Activity.checkSelfPermission" + CONTEXT_DESCRIPTOR),
+                getCalls(run.transformClass(caller)));
+    }
+
+    private static byte[] stubClass(String name, String superName) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, name, null, superName, null);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param calls the opcode, owner and descriptor of each call to
+     *              <code>checkSelfPermission</code>, in order
+     * @return a class with a method making the calls
+     */
+    private static byte[] callerClass(String name, Object... calls) {
+        ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC, "check",
+                "(Landroid/content/Context;Ljava/lang/String;)V", null, null);
+        method.visitCode();
+        for (int i = 0; i < calls.length; i += 3) {
+            method.visitVarInsn(Opcodes.ALOAD, 1);
+            method.visitVarInsn(Opcodes.ALOAD, 2);
+            method.visitMethodInsn((Integer) calls[i], (String) calls[i + 1],
+                    PermissionCheckRewriter.METHOD, (String) calls[i + 2], false);
+            method.visitInsn(Opcodes.POP);
+        }
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(2, 3);
+        method.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return the calls made by the class, as <code>OPCODE owner.namedescriptor</code>
+     */
+    private static List<String> getCalls(byte[] bytes) {
+        final List<String> calls = new ArrayList<>();
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor,
+                                             String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name,
+                                                String descriptor, boolean isInterface) {
+                        String type = opcode == Opcodes.INVOKESTATIC ? "INVOKESTATIC"
+                                : opcode == Opcodes.INVOKEVIRTUAL ? "INVOKEVIRTUAL"
+                                : "INVOKESPECIAL";
+                        calls.add(type + " " + owner + "." + name + descriptor);
+                    }
+                };
+            }
+        }, 0);
+        return calls;
+    }
+}
@@ -0,0 +1,126 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.pm.PackageManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the end-to-end dispatch of batches of requests by {@link PermissionRequestDispatcher},
+ * as done by the delegate of <code>PermissionRule</code>, with a {@link FakePackageManager} behind a
+ * {@link FakeShell} session and the results delivered on the calling thread.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+
+    private static final String PACKAGE_NAME = "com.ahasbini.test.permission_utils";
+    private static final String[] PERMISSIONS = {
+            "android.permission.READ_EXTERNAL_STORAGE", "android.permission.CAMERA"
+    };
+
+    @Param({"1", "8"})
+    public int batchSize;
+
+    private final PermissionOverrideStore store = new PermissionOverrideStore();
+    private final List<BenchmarkRequest> batch = new ArrayList<>();
+    private FakePackageManager packageManager;
+    private ShellSession shell;
+    private PermissionRequestDispatcher dispatcher;
+
+    @Setup
+    public void setUp() throws Exception {
+        packageManager = new FakePackageManager(PACKAGE_NAME, PERMISSIONS);
+        shell = packageManager.newShell();
+        dispatcher = new PermissionRequestDispatcher(PACKAGE_NAME, shell, packageManager,
+                new Executor() {
+
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                }, new PermissionRequestDispatcher.GrantCallback() {
+
+                    @Override
+                    public void onGranted(String[] permissions, long elapsed, boolean granted) {
+                        if (!granted) {
+                            throw new IllegalStateException("permissions not granted");
+                        }
+                    }
+                });
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new BenchmarkRequest(PERMISSIONS[i % PERMISSIONS.length]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        shell.close();
+    }
+
+    /**
+     * Revokes the permissions before each invocation, hence they need to be granted again.
+     */
+    @State(Scope.Benchmark)
+    public static class Revoked {
+
+        @Setup(Level.Invocation)
+        public void revoke(DispatchBenchmark benchmark) {
+            for (String permission : PERMISSIONS) {
+                benchmark.packageManager.execute("pm revoke " + PACKAGE_NAME + " " + permission);
+            }
+        }
+    }
+
+    @Benchmark
+    public int dispatchGranted() throws Exception {
+        return dispatcher.dispatch(batch);
+    }
+
+    @Benchmark
+    public int dispatchMissing(Revoked revoked) throws Exception {
+        return dispatcher.dispatch(batch);
+    }
+
+    private class BenchmarkRequest implements PermissionRequestDispatcher.Request {
+
+        private final String[] permissions;
+        int[] grantResults;
+
+        BenchmarkRequest(String permission) {
+            this.permissions = new String[]{permission};
+        }
+
+        @Override
+        public String[] getPermissions() {
+            return permissions;
+        }
+
+        @Override
+        public void removeOverrides() {
+            for (String permission : permissions) {
+                store.setPermissionResult(permission, PackageManager.PERMISSION_GRANTED);
+            }
+        }
+
+        @Override
+        public void deliver(int[] grantResults) {
+            this.grantResults = grantResults;
+        }
+    }
+}
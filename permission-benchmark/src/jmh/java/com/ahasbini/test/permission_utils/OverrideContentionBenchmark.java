@@ -0,0 +1,88 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.pm.PackageManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link PermissionOverrideStore} under contention: threads setting and clearing
+ * overrides, or pushing and popping scopes, while other threads keep reading the overrides like
+ * the main thread of the app does.
+ */
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class OverrideContentionBenchmark {
+
+    @Param({"4", "64"})
+    public int permissionCount;
+
+    private PermissionOverrideStore store;
+    private String[] permissions;
+    private int[] slots;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        int next;
+
+        int next(int count) {
+            next = next + 1 == count ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        store = new PermissionOverrideStore();
+        permissions = new String[permissionCount];
+        slots = new int[permissionCount];
+        for (int i = 0; i < permissionCount; i++) {
+            permissions[i] = "com.ahasbini.test.permission_utils.permission.P" + i;
+            slots[i] = store.intern(permissions[i]);
+        }
+    }
+
+    @Benchmark
+    @Group("overrides")
+    @GroupThreads(2)
+    public void setAndClear(Cursor cursor) {
+        String permission = permissions[cursor.next(permissionCount)];
+        store.setOverride(permission, PackageManager.PERMISSION_DENIED, false);
+        store.clear(permission);
+    }
+
+    @Benchmark
+    @Group("overrides")
+    @GroupThreads(2)
+    public int readOverrides(Cursor cursor) {
+        return store.getPermissionResultAt(slots[cursor.next(permissionCount)]);
+    }
+
+    @Benchmark
+    @Group("scopes")
+    @GroupThreads(2)
+    public void pushAndPop(Cursor cursor) {
+        String permission = permissions[cursor.next(permissionCount)];
+        store.pop(store.push(permission, PackageManager.PERMISSION_DENIED, true));
+    }
+
+    @Benchmark
+    @Group("scopes")
+    @GroupThreads(2)
+    public int readScopes(Cursor cursor) {
+        return store.getPermissionResultAt(slots[cursor.next(permissionCount)]);
+    }
+}
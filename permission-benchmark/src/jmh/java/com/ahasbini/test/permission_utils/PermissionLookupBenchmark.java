@@ -0,0 +1,103 @@
+package com.ahasbini.test.permission_utils;
+
+import android.content.pm.PackageManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the cost of the permission checks and rationale queries going through the mocking layer,
+ * for overridden permissions and for permissions passing through to the package manager (a
+ * {@link FakePackageManager} here). {@link CustomBuildContext} and {@link CustomBuildBaseActivity}
+ * can't be created off the Android runtime, hence their shared {@link PermissionLookup} is measured
+ * with the real results given by the fake package manager.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class PermissionLookupBenchmark {
+
+    private static final String PACKAGE_NAME = "com.ahasbini.test.permission_utils";
+    private static final String OVERRIDDEN = "android.permission.READ_EXTERNAL_STORAGE";
+    private static final String PASS_THROUGH = "android.permission.CAMERA";
+
+    private final PermissionOverrideStore store = PermissionOverrideStore.getInstance();
+    private final PermissionSession session = PermissionSession.getDefault();
+    private final AtomicLong ownerChecks = new AtomicLong();
+    private FakePackageManager packageManager;
+
+    private final PermissionLookup.RealChecks<FakePackageManager> realChecks =
+            new PermissionLookup.RealChecks<FakePackageManager>() {
+
+                @Override
+                public int checkPermission(FakePackageManager base, String permission, int pid,
+                                           int uid) {
+                    return base.checkSelfPermission(permission);
+                }
+            };
+
+    /**
+     * The system always answering <code>false</code>.
+     */
+    private final PermissionLookup.RealRationales realRationales =
+            new PermissionLookup.RealRationales() {
+
+                @Override
+                public boolean shouldShowRequestPermissionRationale(String permission) {
+                    return false;
+                }
+            };
+
+    @Setup
+    public void setUp() {
+        store.clearAll();
+        store.setOverride(OVERRIDDEN, PackageManager.PERMISSION_DENIED, true);
+        packageManager = new FakePackageManager(PACKAGE_NAME, OVERRIDDEN, PASS_THROUGH);
+        packageManager.execute("pm grant " + PACKAGE_NAME + " " + PASS_THROUGH);
+    }
+
+    @TearDown
+    public void tearDown() {
+        store.clearAll();
+    }
+
+    @Benchmark
+    public int checkSelfPermissionOverridden() {
+        return checkSelfPermission(OVERRIDDEN);
+    }
+
+    @Benchmark
+    public int checkSelfPermissionPassThrough() {
+        return checkSelfPermission(PASS_THROUGH);
+    }
+
+    @Benchmark
+    public boolean shouldShowRationaleOverridden() {
+        return PermissionLookup.shouldShowRequestPermissionRationale(OVERRIDDEN, session,
+                realRationales);
+    }
+
+    @Benchmark
+    public boolean shouldShowRationalePassThrough() {
+        return PermissionLookup.shouldShowRequestPermissionRationale(PASS_THROUGH, session,
+                realRationales);
+    }
+
+    /**
+     * The path of <code>CustomBuildContext.checkSelfPermission()</code> in the default session.
+     */
+    private int checkSelfPermission(String permission) {
+        return PermissionLookup.checkPermission(PermissionTrace.TYPE_CHECK_SELF_PERMISSION,
+                permission, 0, 0, session, ownerChecks, realChecks, packageManager);
+    }
+}
@@ -0,0 +1,419 @@
+package com.ahasbini.test.permission_utils.processor;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * An annotation processor for the <code>RequiresPermissions</code> and
+ * <code>RevokedPermissions</code> annotations of the tests. It validates the permissions against
+ * <code>android.Manifest.permission</code> and the app manifests passed in the
+ * <code>permissionManifests</code> option (separated by {@link File#pathSeparator}), failing the
+ * build on unknown permissions or on required permissions which the app doesn't request. It then
+ * generates <code>GeneratedPermissionPlans</code>, holding the resolved plan of every annotated
+ * test class and method, which <code>PermissionStateRule</code> uses instead of reading the
+ * annotations at runtime.
+ */
+
+public class PermissionPlanProcessor extends AbstractProcessor {
+
+    static final String PACKAGE = "com.ahasbini.test.permission_utils";
+    static final String REQUIRES_PERMISSIONS = PACKAGE + ".RequiresPermissions";
+    static final String REVOKED_PERMISSIONS = PACKAGE + ".RevokedPermissions";
+    static final String GENERATED_CLASS = "GeneratedPermissionPlans";
+    static final String OPTION_MANIFESTS = "permissionManifests";
+
+    private static final String ANDROID_NAMESPACE = "http://schemas.android.com/apk/res/android";
+
+    private final Map<String, Plan> plans = new TreeMap<>();
+    private Set<String> knownPermissions;
+    private Set<String> requestedPermissions;
+    private boolean generated;
+
+    private Elements elements;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return new HashSet<>(Arrays.asList(REQUIRES_PERMISSIONS, REVOKED_PERMISSIONS));
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(OPTION_MANIFESTS);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (generated || roundEnv.processingOver()) {
+            return false;
+        }
+        loadPermissions();
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+            collectPlans(type);
+        }
+        if (!plans.isEmpty()) {
+            writePlans();
+            generated = true;
+        }
+        return false;
+    }
+
+    /**
+     * Validates and resolves the plans of the class, its methods and its nested classes.
+     */
+    private void collectPlans(TypeElement type) {
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            collectPlans(nested);
+        }
+        if (type.getKind() != ElementKind.CLASS) {
+            return;
+        }
+
+        String className = elements.getBinaryName(type).toString();
+        Plan classPlan = getClassPlan(type);
+        Map<String, Plan> methodPlans = new TreeMap<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+            // Inherited methods are validated with the class declaring them
+            Plan methodPlan = getPlan(method, method.getEnclosingElement().equals(type));
+            if (methodPlan != null) {
+                methodPlans.put(className + "#" + method.getSimpleName(),
+                        classPlan == null ? methodPlan : classPlan.with(methodPlan));
+            }
+        }
+        if (classPlan == null && methodPlans.isEmpty()) {
+            return;
+        }
+        plans.put(className, classPlan == null ? new Plan() : classPlan);
+        plans.putAll(methodPlans);
+    }
+
+    /**
+     * Resolves the class plan, following the inheritance of the annotations from the superclasses.
+     */
+    private Plan getClassPlan(TypeElement type) {
+        AnnotationMirror requires = null;
+        AnnotationMirror revokes = null;
+        TypeElement current = type;
+        while (current != null && (requires == null || revokes == null)) {
+            if (requires == null) {
+                requires = getAnnotation(current, REQUIRES_PERMISSIONS);
+            }
+            if (revokes == null) {
+                revokes = getAnnotation(current, REVOKED_PERMISSIONS);
+            }
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED
+                    ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        if (requires == null && revokes == null) {
+            return null;
+        }
+        validate(type, getAnnotation(type, REQUIRES_PERMISSIONS),
+                getAnnotation(type, REVOKED_PERMISSIONS));
+        return Plan.of(getPermissions(requires), getPermissions(revokes), getRationale(revokes));
+    }
+
+    private Plan getPlan(ExecutableElement method, boolean validate) {
+        AnnotationMirror requires = getAnnotation(method, REQUIRES_PERMISSIONS);
+        AnnotationMirror revokes = getAnnotation(method, REVOKED_PERMISSIONS);
+        if (requires == null && revokes == null) {
+            return null;
+        }
+        if (validate) {
+            validate(method, requires, revokes);
+        }
+        return Plan.of(getPermissions(requires), getPermissions(revokes), getRationale(revokes));
+    }
+
+    private void validate(javax.lang.model.element.Element element, AnnotationMirror requires,
+                          AnnotationMirror revokes) {
+        List<String> required = getPermissions(requires);
+        List<String> revoked = getPermissions(revokes);
+        if (requires != null) {
+            validate(element, requires, required, true);
+        }
+        if (revokes != null) {
+            validate(element, revokes, revoked, false);
+        }
+        for (String permission : required) {
+            if (revoked.contains(permission)) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Permission " + permission
+                        + " is both required and revoked", element, revokes);
+            }
+        }
+    }
+
+    private void validate(javax.lang.model.element.Element element, AnnotationMirror annotation,
+                          List<String> permissions, boolean required) {
+        if (permissions.isEmpty()) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "No permissions declared", element,
+                    annotation);
+        }
+        for (String permission : permissions) {
+            if (!knownPermissions.isEmpty() && !knownPermissions.contains(permission)
+                    && (requestedPermissions == null
+                    || !requestedPermissions.contains(permission))) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Unknown permission " + permission,
+                        element, annotation);
+            } else if (required && requestedPermissions != null
+                    && !requestedPermissions.contains(permission)) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Permission " + permission
+                        + " isn't requested in the app manifest and can't be granted", element,
+                        annotation);
+            }
+        }
+    }
+
+    private static AnnotationMirror getAnnotation(javax.lang.model.element.Element element,
+                                                  String annotationName) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) annotation.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotationName)) {
+                return annotation;
+            }
+        }
+        return null;
+    }
+
+    private AnnotationValue getValue(AnnotationMirror annotation, String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : elements.getElementValuesWithDefaults(annotation).entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private List<String> getPermissions(AnnotationMirror annotation) {
+        List<String> permissions = new ArrayList<>();
+        if (annotation == null) {
+            return permissions;
+        }
+        AnnotationValue value = getValue(annotation, "value");
+        if (value != null && value.getValue() instanceof List) {
+            for (Object item : (List<?>) value.getValue()) {
+                permissions.add(String.valueOf(((AnnotationValue) item).getValue()));
+            }
+        }
+        return permissions;
+    }
+
+    private boolean getRationale(AnnotationMirror annotation) {
+        if (annotation == null) {
+            return false;
+        }
+        AnnotationValue value = getValue(annotation, "showRationale");
+        return value != null && Boolean.TRUE.equals(value.getValue());
+    }
+
+    /**
+     * Loads the constants of <code>android.Manifest.permission</code> and the permissions of the
+     * app manifests. Validation against either is skipped if it's not available.
+     */
+    private void loadPermissions() {
+        if (knownPermissions != null) {
+            return;
+        }
+        knownPermissions = new HashSet<>();
+        TypeElement manifestPermission = elements.getTypeElement("android.Manifest.permission");
+        if (manifestPermission != null) {
+            for (VariableElement field
+                    : ElementFilter.fieldsIn(manifestPermission.getEnclosedElements())) {
+                if (field.getConstantValue() instanceof String) {
+                    knownPermissions.add((String) field.getConstantValue());
+                }
+            }
+        } else {
+            messager.printMessage(Diagnostic.Kind.WARNING,
+                    "android.Manifest.permission not found, skipping permissions validation");
+        }
+
+        String manifests = processingEnv.getOptions().get(OPTION_MANIFESTS);
+        if (manifests == null || manifests.isEmpty()) {
+            return;
+        }
+        requestedPermissions = new HashSet<>();
+        for (String path : manifests.split(File.pathSeparator)) {
+            try {
+                readManifest(new File(path));
+            } catch (Exception e) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Unable to read manifest " + path
+                        + ": " + e);
+            }
+        }
+    }
+
+    private void readManifest(File file) throws Exception {
+        if (!file.exists()) {
+            return;
+        }
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document document = factory.newDocumentBuilder().parse(file);
+        for (String tag : new String[]{"uses-permission", "uses-permission-sdk-23"}) {
+            NodeList nodes = document.getElementsByTagName(tag);
+            for (int i = 0; i < nodes.getLength(); i++) {
+                requestedPermissions.add(((Element) nodes.item(i))
+                        .getAttributeNS(ANDROID_NAMESPACE, "name"));
+            }
+        }
+        // Permissions defined by the app are known but still need to be requested to be granted
+        NodeList nodes = document.getElementsByTagName("permission");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            knownPermissions.add(((Element) nodes.item(i)).getAttributeNS(ANDROID_NAMESPACE,
+                    "name"));
+        }
+    }
+
+    private void writePlans() {
+        try {
+            Writer writer = processingEnv.getFiler()
+                    .createSourceFile(PACKAGE + "." + GENERATED_CLASS).openWriter();
+            try {
+                writer.write(generateSource(plans));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            messager.printMessage(Diagnostic.Kind.ERROR, "Unable to write " + GENERATED_CLASS
+                    + ": " + e);
+        }
+    }
+
+    static String generateSource(Map<String, Plan> plans) {
+        StringBuilder source = new StringBuilder()
+                .append("package ").append(PACKAGE).append(";\n\n")
+                .append("import java.util.HashMap;\n")
+                .append("import java.util.Map;\n\n")
+                .append("/**\n")
+                .append(" * Generated by ").append(PermissionPlanProcessor.class.getName())
+                .append(", do not edit.\n")
+                .append(" */\n\n")
+                .append("final class ").append(GENERATED_CLASS)
+                .append(" implements PermissionStateRule.PlanIndex {\n\n")
+                .append("    private final Map<String, PermissionStateRule.PermissionPlan> plans")
+                .append(" = new HashMap<>();\n\n")
+                .append("    ").append(GENERATED_CLASS).append("() {\n");
+        for (Map.Entry<String, Plan> entry : plans.entrySet()) {
+            Plan plan = entry.getValue();
+            source.append("        plans.put(").append(quote(entry.getKey()))
+                    .append(", PermissionStateRule.PermissionPlan.create(\n")
+                    .append("                new String[]{");
+            appendQuoted(source, plan.granted);
+            source.append("},\n                new String[]{");
+            appendQuoted(source, plan.revoked.keySet());
+            source.append("},\n                new boolean[]{");
+            String separator = "";
+            for (Boolean showRationale : plan.revoked.values()) {
+                source.append(separator).append(showRationale);
+                separator = ", ";
+            }
+            source.append("}));\n");
+        }
+        return source.append("    }\n\n")
+                .append("    @Override\n")
+                .append("    public PermissionStateRule.PermissionPlan getPlan(String testClass,")
+                .append(" String testMethod) {\n")
+                .append("        PermissionStateRule.PermissionPlan plan")
+                .append(" = plans.get(testClass + '#' + testMethod);\n")
+                .append("        return plan != null ? plan : plans.get(testClass);\n")
+                .append("    }\n")
+                .append("}\n")
+                .toString();
+    }
+
+    private static void appendQuoted(StringBuilder source, Iterable<String> values) {
+        String separator = "";
+        for (String value : values) {
+            source.append(separator).append(quote(value));
+            separator = ", ";
+        }
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * The permission state of a test, resolved the same way as
+     * <code>PermissionStateRule.PermissionPlan</code>.
+     */
+    static class Plan {
+
+        final Set<String> granted = new LinkedHashSet<>();
+        final Map<String, Boolean> revoked = new LinkedHashMap<>();
+
+        static Plan of(List<String> required, List<String> revokedPermissions,
+                       boolean showRationale) {
+            Plan plan = new Plan();
+            plan.granted.addAll(required);
+            for (String permission : revokedPermissions) {
+                plan.granted.remove(permission);
+                plan.revoked.put(permission, showRationale);
+            }
+            return plan;
+        }
+
+        /**
+         * @return the plan with the permissions of the other plan taking precedence
+         */
+        Plan with(Plan other) {
+            Plan plan = new Plan();
+            plan.granted.addAll(granted);
+            plan.revoked.putAll(revoked);
+            plan.granted.removeAll(other.revoked.keySet());
+            plan.granted.addAll(other.granted);
+            plan.revoked.keySet().removeAll(other.granted);
+            plan.revoked.putAll(other.revoked);
+            return plan;
+        }
+    }
+}
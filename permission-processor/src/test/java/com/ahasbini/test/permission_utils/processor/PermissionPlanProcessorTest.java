@@ -0,0 +1,170 @@
+package com.ahasbini.test.permission_utils.processor;
+
+import com.google.testing.compile.Compilation;
+import com.google.testing.compile.JavaFileObjects;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.tools.JavaFileObject;
+
+import static com.google.testing.compile.CompilationSubject.assertThat;
+import static com.google.testing.compile.Compiler.javac;
+
+/**
+ * Tests the validation of the test permission annotations by {@link PermissionPlanProcessor} and
+ * the plans it generates, compiling sources against stubs of the annotations, of
+ * <code>android.Manifest.permission</code> and of <code>PermissionStateRule</code>.
+ */
+public class PermissionPlanProcessorTest {
+
+    private static final String GENERATED_PLANS = PermissionPlanProcessor.PACKAGE + "."
+            + PermissionPlanProcessor.GENERATED_CLASS;
+
+    private static final JavaFileObject MANIFEST = JavaFileObjects.forSourceLines(
+            "android.Manifest",
+            "package android;",
+            "public final class Manifest {",
+            "    public static final class permission {",
+            "        public static final String CAMERA = \"android.permission.CAMERA\";",
+            "        public static final String READ_CONTACTS =",
+            "                \"android.permission.READ_CONTACTS\";",
+            "    }",
+            "}");
+
+    private static final JavaFileObject REQUIRES_PERMISSIONS = JavaFileObjects.forSourceLines(
+            PermissionPlanProcessor.REQUIRES_PERMISSIONS,
+            "package com.ahasbini.test.permission_utils;",
+            "public @interface RequiresPermissions {",
+            "    String[] value();",
+            "}");
+
+    private static final JavaFileObject REVOKED_PERMISSIONS = JavaFileObjects.forSourceLines(
+            PermissionPlanProcessor.REVOKED_PERMISSIONS,
+            "package com.ahasbini.test.permission_utils;",
+            "public @interface RevokedPermissions {",
+            "    String[] value();",
+            "    boolean showRationale() default false;",
+            "}");
+
+    private static final JavaFileObject PERMISSION_STATE_RULE = JavaFileObjects.forSourceLines(
+            PermissionPlanProcessor.PACKAGE + ".PermissionStateRule",
+            "package com.ahasbini.test.permission_utils;",
+            "public class PermissionStateRule {",
+            "    interface PlanIndex {",
+            "        PermissionPlan getPlan(String testClass, String testMethod);",
+            "    }",
+            "    static class PermissionPlan {",
+            "        static PermissionPlan create(String[] granted, String[] revoked,",
+            "                                     boolean[] showRationale) {",
+            "            return new PermissionPlan();",
+            "        }",
+            "    }",
+            "}");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unknownPermissionFailsWithoutManifests() {
+        Compilation compilation = compile(null, testClass(
+                "@RequiresPermissions(\"android.permission.CAMRA\")",
+                "@RequiresPermissions(Manifest.permission.CAMERA)"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Unknown permission android.permission.CAMRA");
+    }
+
+    @Test
+    public void unknownPermissionFailsWithManifests() throws Exception {
+        Compilation compilation = compile(writeManifest("android.permission.CAMERA"), testClass(
+                "@RequiresPermissions(Manifest.permission.CAMERA)",
+                "@RevokedPermissions(\"android.permission.READ_CONTACT\")"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation)
+                .hadErrorContaining("Unknown permission android.permission.READ_CONTACT");
+    }
+
+    @Test
+    public void requiredPermissionNotRequestedFails() throws Exception {
+        Compilation compilation = compile(writeManifest("android.permission.CAMERA"), testClass(
+                "@RequiresPermissions(Manifest.permission.CAMERA)",
+                "@RequiresPermissions(Manifest.permission.READ_CONTACTS)"));
+
+        assertThat(compilation).failed();
+        assertThat(compilation).hadErrorContaining("Permission android.permission.READ_CONTACTS"
+                + " isn't requested in the app manifest and can't be granted");
+    }
+
+    @Test
+    public void generatesPlansOfClassesAndMethods() throws Exception {
+        Compilation compilation = compile(writeManifest("android.permission.CAMERA"), testClass(
+                "@RequiresPermissions(Manifest.permission.CAMERA)",
+                "@RevokedPermissions(value = {Manifest.permission.CAMERA,"
+                        + " Manifest.permission.READ_CONTACTS}, showRationale = true)"));
+
+        assertThat(compilation).succeededWithoutWarnings();
+        assertThat(compilation).generatedSourceFile(GENERATED_PLANS).contentsAsUtf8String()
+                .contains("plans.put(\"com.example.ExampleTest\","
+                        + " PermissionStateRule.PermissionPlan.create(\n"
+                        + "                new String[]{\"android.permission.CAMERA\"},\n"
+                        + "                new String[]{},\n"
+                        + "                new boolean[]{}));");
+        assertThat(compilation).generatedSourceFile(GENERATED_PLANS).contentsAsUtf8String()
+                .contains("plans.put(\"com.example.ExampleTest#test\","
+                        + " PermissionStateRule.PermissionPlan.create(\n"
+                        + "                new String[]{},\n"
+                        + "                new String[]{\"android.permission.CAMERA\","
+                        + " \"android.permission.READ_CONTACTS\"},\n"
+                        + "                new boolean[]{true, true}));");
+    }
+
+    private Compilation compile(File manifest, JavaFileObject testClass) {
+        return javac()
+                .withProcessors(new PermissionPlanProcessor())
+                .withOptions(manifest == null ? new Object[0] : new Object[]{"-A"
+                        + PermissionPlanProcessor.OPTION_MANIFESTS + "=" + manifest.getPath()})
+                .compile(MANIFEST, REQUIRES_PERMISSIONS, REVOKED_PERMISSIONS,
+                        PERMISSION_STATE_RULE, testClass);
+    }
+
+    private static JavaFileObject testClass(String classAnnotation, String methodAnnotation) {
+        return JavaFileObjects.forSourceLines("com.example.ExampleTest",
+                "package com.example;",
+                "import android.Manifest;",
+                "import com.ahasbini.test.permission_utils.RequiresPermissions;",
+                "import com.ahasbini.test.permission_utils.RevokedPermissions;",
+                classAnnotation,
+                "public class ExampleTest {",
+                "    " + methodAnnotation,
+                "    public void test() {",
+                "    }",
+                "}");
+    }
+
+    /**
+     * @return an app manifest requesting the permissions
+     */
+    private File writeManifest(String... permissions) throws IOException {
+        File manifest = folder.newFile("AndroidManifest.xml");
+        Writer writer = new FileWriter(manifest);
+        try {
+            writer.write("<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\""
+                    + " package=\"com.example\">\n");
+            for (String permission : permissions) {
+                writer.write("    <uses-permission android:name=\"" + permission + "\" />\n");
+            }
+            writer.write("</manifest>\n");
+        } finally {
+            writer.close();
+        }
+        return manifest;
+    }
+}